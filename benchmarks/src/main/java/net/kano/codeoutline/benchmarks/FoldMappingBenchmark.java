@@ -0,0 +1,95 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.ex.EditorEx;
+import net.kano.codeoutline.FoldIndex;
+import net.kano.codeoutline.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures mapping between document lines and outline rows through
+ * {@link Util#getLineMinusFolds} and {@link Util#getLinePlusFolds}, as the
+ * panel does for every mouse event and caret, and as the renderer does for
+ * every row; and rebuilding the fold index after the folds changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+public class FoldMappingBenchmark {
+    /** The number of lines looked up by each invocation of the lookup benchmarks. */
+    private static final int LOOKUPS = 1024;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int lines;
+
+    @Param({ "0", "10", "100" })
+    public int foldsPer1000Lines;
+
+    private EditorEx editor;
+    private int rowCount;
+    private int[] randomLines;
+    private int[] randomRows;
+
+    @Setup
+    public void setUp() {
+        editor = new SyntheticDocument(lines, foldsPer1000Lines, 0).getEditor();
+        rowCount = Util.getLineCountMinusFolds(editor);
+
+        final Random random = new Random(42);
+        randomLines = new int[LOOKUPS];
+        randomRows = new int[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            randomLines[i] = random.nextInt(lines);
+            randomRows[i] = random.nextInt(rowCount);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int lineToRow() {
+        int sum = 0;
+        for (int line : randomLines) {
+            sum += Util.getLineMinusFolds(editor, line);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int rowToLine() {
+        int sum = 0;
+        for (int row : randomRows) {
+            sum += Util.getLinePlusFolds(editor, row);
+        }
+        return sum;
+    }
+
+    /**
+     * Maps every row of the outline to its line, as rendering the whole
+     * outline does.
+     */
+    @Benchmark
+    public int allRowsToLines() {
+        final FoldIndex folds = FoldIndex.getInstance(editor);
+        int sum = 0;
+        for (int row = 0; row < rowCount; row++) {
+            sum += folds.getLine(row);
+        }
+        return sum;
+    }
+
+    /**
+     * Rebuilds the fold index, as the first lookup after folding or
+     * unfolding a region does.
+     */
+    @Benchmark
+    public int rebuild() {
+        FoldIndex.invalidate(editor);
+        return FoldIndex.getInstance(editor).getRowCount();
+    }
+}
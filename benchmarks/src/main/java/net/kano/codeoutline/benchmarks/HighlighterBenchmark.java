@@ -0,0 +1,131 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import net.kano.codeoutline.FoldIndex;
+import net.kano.codeoutline.HighlighterIndex;
+import net.kano.codeoutline.SeverityLayer;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures finding the highlighters of the visible outline rows, as
+ * {@link net.kano.codeoutline.CodeOutlinePanel#paintComponent} does on every
+ * paint through the {@link SeverityLayer}, against scanning all highlighters
+ * of the document the way the panel used to.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+public class HighlighterBenchmark {
+    /** The number of rows of a panel filling a tall editor window. */
+    private static final int VIEWPORT_ROWS = 500;
+
+    @Param({ "1000", "100000", "1000000" })
+    public int lines;
+
+    @Param({ "10", "100", "400" })
+    public int highlightersPer100Lines;
+
+    @Param({ "10" })
+    public int foldsPer1000Lines;
+
+    private SyntheticDocument synthetic;
+    private Document document;
+    private HighlighterIndex index;
+    private SeverityLayer severities;
+    private FoldIndex folds;
+    private BufferedImage target;
+    private Graphics2D g;
+    /** The first line of the viewport, moved by every invocation. */
+    private int viewportLine = 0;
+
+    @Setup
+    public void setUp() {
+        synthetic = new SyntheticDocument(lines, foldsPer1000Lines, highlightersPer100Lines);
+        document = synthetic.getDocument();
+        index = new HighlighterIndex(document);
+        for (RangeHighlighterEx highlighter : synthetic.getHighlighters()) {
+            index.add(highlighter);
+        }
+        severities = new SeverityLayer(document, index);
+        folds = FoldIndex.getInstance(synthetic.getEditor());
+        target = new BufferedImage(16, VIEWPORT_ROWS * 2 + 1, BufferedImage.TYPE_INT_ARGB_PRE);
+        g = target.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        g.dispose();
+    }
+
+    private int nextViewport() {
+        viewportLine = (viewportLine + VIEWPORT_ROWS * 7 / 3) % Math.max(1, lines - VIEWPORT_ROWS);
+        return viewportLine;
+    }
+
+    /**
+     * Visits the highlighters of the viewport through the line buckets.
+     */
+    @Benchmark
+    public int viewportIndexed() {
+        final int first = nextViewport();
+        final int[] count = new int[1];
+        index.process(first, first + VIEWPORT_ROWS - 1, new HighlighterIndex.Visitor() {
+            public void visit(RangeHighlighterEx highlighter, int startLine, int endLine) {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Visits the highlighters of the viewport by looking at the lines of
+     * every highlighter of the document.
+     */
+    @Benchmark
+    public int viewportScan() {
+        final int first = nextViewport();
+        final int last = first + VIEWPORT_ROWS - 1;
+        int count = 0;
+        for (RangeHighlighterEx highlighter : synthetic.getHighlighters()) {
+            if (!highlighter.isValid()) continue;
+            final int startLine = document.getLineNumber(highlighter.getStartOffset());
+            final int endLine = document.getLineNumber(highlighter.getEndOffset());
+            if (endLine >= first && startLine <= last) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Paints the severity stripes of the viewport, with nothing changed since
+     * the last paint.
+     */
+    @Benchmark
+    public BufferedImage paintSeverities() {
+        severities.paint(g, folds, -folds.getRow(nextViewport()) * 2, target.getWidth(), target.getHeight());
+        return target;
+    }
+
+    /**
+     * Paints the severity stripes of the viewport after a one line edit in
+     * it, which puts the highlighters of its bucket into buckets again and
+     * looks at the problems on the edited line only.
+     */
+    @Benchmark
+    public BufferedImage paintSeveritiesAfterEdit() {
+        final int line = nextViewport();
+        synthetic.touch();
+        index.linesReplaced(line, line, line);
+        severities.linesReplaced(line, line, line);
+        folds = FoldIndex.getInstance(synthetic.getEditor());
+        severities.paint(g, folds, -folds.getRow(line) * 2, target.getWidth(), target.getHeight());
+        return target;
+    }
+}
@@ -0,0 +1,137 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.Document;
+import net.kano.codeoutline.FoldIndex;
+import net.kano.codeoutline.OutlineRenderMode;
+import net.kano.codeoutline.OutlineRenderer;
+import net.kano.codeoutline.OutlineTile;
+import net.kano.codeoutline.ParallelRender;
+import net.kano.codeoutline.SpanSnapshot;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a whole document tile by tile on one thread, against
+ * capturing the spans of each tile on one thread and rendering the tiles on
+ * {@link ParallelRender} workers, as the outline does when the
+ * <code>codeoutline.renderWorkers</code> system property turns workers on.
+ * Workers should only be turned on by default once this shows them beating
+ * the sequential render on a multi-core machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+public class ParallelRenderBenchmark {
+    @Param({ "200000" })
+    public int lines;
+
+    @Param({ "10" })
+    public int foldsPer1000Lines;
+
+    @Param({ "10" })
+    public int highlightersPer100Lines;
+
+    @Param({ "PIXELS", "GLYPHS" })
+    public OutlineRenderMode renderMode;
+
+    @Param({ "1", "2", "4", "8", "15" })
+    public int workers;
+
+    @Param({ "100" })
+    public int width;
+
+    private Document document;
+    private SyntheticSource source;
+    private FoldIndex folds;
+    private ExecutorService executor;
+    /** Image pairs not being rendered into. */
+    private final ConcurrentLinkedQueue<BufferedImage[]> images = new ConcurrentLinkedQueue<BufferedImage[]>();
+
+    @Setup
+    public void setUp() {
+        final SyntheticDocument synthetic = new SyntheticDocument(lines, foldsPer1000Lines, highlightersPer100Lines);
+        document = synthetic.getDocument();
+        source = new SyntheticSource(synthetic);
+        folds = FoldIndex.getInstance(synthetic.getEditor());
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int sequential() {
+        final OutlineRenderer renderer = new OutlineRenderer(renderMode);
+        final int rowCount = folds.getRowCount();
+        int tiles = 0;
+        for (int from = 0; from < rowCount; from += OutlineTile.ROWS) {
+            final BufferedImage[] pair = obtainImages();
+            renderer.render(source, getStartOffset(from), getEndOffset(from, rowCount), pair[0], pair[1], 1);
+            images.add(pair);
+            tiles++;
+        }
+        return tiles;
+    }
+
+    @Benchmark
+    public boolean parallel() {
+        final ParallelRender render = new ParallelRender(executor, workers);
+        final int rowCount = folds.getRowCount();
+        for (int from = 0; from < rowCount; from += OutlineTile.ROWS) {
+            final int startOffset = getStartOffset(from);
+            final int endOffset = getEndOffset(from, rowCount);
+            final SpanSnapshot snapshot = SpanSnapshot.capture(source, startOffset, endOffset);
+            render.add(new ParallelRender.Band() {
+                public boolean render() {
+                    final BufferedImage[] pair = obtainImages();
+                    new OutlineRenderer(renderMode).render(snapshot, startOffset, endOffset, pair[0], pair[1], 1);
+                    images.add(pair);
+                    return true;
+                }
+            });
+        }
+        return render.finish();
+    }
+
+    private int getStartOffset(int fromRow) {
+        return document.getLineStartOffset(folds.getLine(fromRow));
+    }
+
+    /**
+     * Returns the end of the text drawn on the tile starting at the given row.
+     */
+    private int getEndOffset(int fromRow, int rowCount) {
+        final int nextRow = fromRow + OutlineTile.ROWS;
+        final int lastLine = nextRow < rowCount ? folds.getLine(nextRow) - 1 : document.getLineCount() - 1;
+        return document.getLineEndOffset(lastLine);
+    }
+
+    /**
+     * Returns a cleared pair of tile images.
+     */
+    private BufferedImage[] obtainImages() {
+        BufferedImage[] pair = images.poll();
+        if (pair == null) {
+            pair = new BufferedImage[] {
+                    new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE),
+                    new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE) };
+        } else {
+            for (BufferedImage img : pair) {
+                Arrays.fill(((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0);
+            }
+        }
+        return pair;
+    }
+}
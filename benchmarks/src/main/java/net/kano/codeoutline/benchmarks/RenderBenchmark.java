@@ -0,0 +1,101 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.Document;
+import net.kano.codeoutline.FoldIndex;
+import net.kano.codeoutline.LineRunCache;
+import net.kano.codeoutline.OutlineRenderMode;
+import net.kano.codeoutline.OutlineRenderer;
+import net.kano.codeoutline.OutlineSource;
+import net.kano.codeoutline.OutlineTile;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a whole document with the {@link OutlineRenderer}, tile
+ * by tile, as the outline does when it is first drawn at a mipmap level.
+ * Every tile is rendered into the same pair of images, cleared in between.
+ * The document is rendered from its source, and from a {@link LineRunCache}
+ * which captured all of its lines, as the outline is after the first render.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true", "-Xmx2g" })
+public class RenderBenchmark {
+    @Param({ "1000", "100000", "1000000" })
+    public int lines;
+
+    @Param({ "10" })
+    public int foldsPer1000Lines;
+
+    @Param({ "10" })
+    public int highlightersPer100Lines;
+
+    @Param({ "PIXELS", "GLYPHS", "TEXT", "BLOCK" })
+    public OutlineRenderMode renderMode;
+
+    @Param({ "100" })
+    public int width;
+
+    private Document document;
+    private SyntheticSource source;
+    private LineRunCache runs;
+    private FoldIndex folds;
+    private OutlineRenderer renderer;
+    private BufferedImage fg;
+    private BufferedImage bg;
+
+    @Setup
+    public void setUp() {
+        final SyntheticDocument synthetic = new SyntheticDocument(lines, foldsPer1000Lines, highlightersPer100Lines);
+        document = synthetic.getDocument();
+        source = new SyntheticSource(synthetic);
+        runs = new LineRunCache(document);
+        runs.update(synthetic.getEditor(), source);
+        folds = FoldIndex.getInstance(synthetic.getEditor());
+        renderer = new OutlineRenderer(renderMode);
+        fg = new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE);
+        bg = new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE);
+    }
+
+    @Benchmark
+    public BufferedImage renderDocument() {
+        return render(source);
+    }
+
+    @Benchmark
+    public BufferedImage renderDocumentFromRunCache() {
+        return render(runs);
+    }
+
+    private BufferedImage render(OutlineSource source) {
+        final int rowCount = folds.getRowCount();
+        for (int from = 0; from < rowCount; from += OutlineTile.ROWS) {
+            clear(fg);
+            clear(bg);
+            renderTile(source, from, Math.min(rowCount, from + OutlineTile.ROWS) - 1, rowCount);
+        }
+        return fg;
+    }
+
+    /**
+     * Renders the given rows into the images, the first row at the top.
+     */
+    private void renderTile(OutlineSource source, int fromRow, int toRow, int rowCount) {
+        final int firstLine = folds.getLine(fromRow);
+        final int lastLine = toRow + 1 < rowCount ? folds.getLine(toRow + 1) - 1 : document.getLineCount() - 1;
+        // the first row of a tile is one pixel below its top
+        renderer.render(source, document.getLineStartOffset(firstLine), document.getLineEndOffset(lastLine),
+                fg, bg, 1);
+    }
+
+    private static void clear(BufferedImage img) {
+        Arrays.fill(((DataBufferInt) img.getRaster().getDataBuffer()).getData(), 0);
+    }
+}
@@ -0,0 +1,231 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.ex.DocumentEx;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.ex.FoldingModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.util.Key;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A generated Java-like document with collapsed fold regions and range
+ * highlighters, and an editor showing it, for benchmarking the outline code
+ * without an IDE.
+ * <p>
+ * The document, editor, folding model, fold regions and highlighters are
+ * proxies answering only the methods the outline code calls on them; any other
+ * method throws {@link UnsupportedOperationException}, so a benchmark reaching
+ * code which needs more of the IDE fails instead of measuring nonsense.
+ */
+public class SyntheticDocument {
+    /** The lines the document repeats: a method, ten lines long. */
+    private static final String[] METHOD = {
+            "    /** Returns the sum of the given values, counting the calls. */",
+            "    public int sum(int a, int b) {",
+            "        if (a > b) {",
+            "            count++; // a comment",
+            "        }",
+            "        final String s = \"a string literal\";",
+            "        return a + b + count + s.length();",
+            "    }",
+            "",
+            "    private int count = 0;",
+    };
+    /** The most lines a generated fold region hides. */
+    private static final int FOLD_LINES = 6;
+
+    private final String text;
+    private final int[] lineStarts;
+    private final FoldRegion[] foldRegions;
+    private final RangeHighlighterEx[] highlighters;
+    private final DocumentEx document;
+    private final EditorEx editor;
+    private long stamp = 1;
+
+    /**
+     * Generates a document.
+     *
+     * @param lineCount the number of lines
+     * @param foldsPer1000Lines the number of collapsed fold regions for every
+     *        thousand lines
+     * @param highlightersPer100Lines the number of highlighters for every
+     *        hundred lines
+     */
+    public SyntheticDocument(int lineCount, int foldsPer1000Lines, int highlightersPer100Lines) {
+        final StringBuilder sb = new StringBuilder(lineCount * 40);
+        lineStarts = new int[lineCount];
+        for (int line = 0; line < lineCount; line++) {
+            if (line > 0) sb.append('\n');
+            lineStarts[line] = sb.length();
+            sb.append(METHOD[line % METHOD.length]);
+        }
+        text = sb.toString();
+
+        document = proxy(DocumentEx.class, new Handler() {
+            private final Map<Key, Object> userData = new HashMap<Key, Object>();
+
+            protected Object call(String name, Object[] args) {
+                if (name.equals("getTextLength")) return text.length();
+                if (name.equals("getLineCount")) return lineStarts.length;
+                if (name.equals("getLineNumber")) return getLineNumber((Integer) args[0]);
+                if (name.equals("getLineStartOffset")) return lineStarts[(Integer) args[0]];
+                if (name.equals("getLineEndOffset")) return getLineEndOffset((Integer) args[0]);
+                if (name.equals("getCharsSequence") || name.equals("getText")) return text;
+                if (name.equals("getModificationStamp")) return stamp;
+                if (name.equals("getUserData")) return userData.get(args[0]);
+                if (name.equals("putUserData")) return userData.put((Key) args[0], args[1]);
+                return unsupported(name);
+            }
+        });
+
+        final int foldCount = (int) ((long) lineCount * foldsPer1000Lines / 1000);
+        foldRegions = new FoldRegion[foldCount];
+        for (int i = 0; i < foldCount; i++) {
+            final int startLine = (int) ((long) i * lineCount / foldCount);
+            final int spacing = (int) ((long) (i + 1) * lineCount / foldCount) - startLine;
+            final int endLine = Math.min(lineCount - 1, startLine + Math.min(FOLD_LINES, spacing - 1));
+            foldRegions[i] = createRange(FoldRegion.class, getLineEndOffset(startLine), getLineEndOffset(endLine));
+        }
+
+        final int highlighterCount = (int) ((long) lineCount * highlightersPer100Lines / 100);
+        highlighters = new RangeHighlighterEx[highlighterCount];
+        for (int i = 0; i < highlighterCount; i++) {
+            final int line = (int) ((long) i * lineCount / highlighterCount);
+            // every eighth highlighter spans into the next line
+            final int endLine = i % 8 == 0 ? Math.min(lineCount - 1, line + 1) : line;
+            highlighters[i] = createRange(RangeHighlighterEx.class, lineStarts[line], getLineEndOffset(endLine));
+        }
+
+        final FoldingModelEx foldingModel = proxy(FoldingModelEx.class, new Handler() {
+            protected Object call(String name, Object[] args) {
+                if (name.equals("getAllFoldRegions")) return foldRegions.clone();
+                if (name.equals("getCollapsedRegionAtOffset")) return getFoldRegionAt((Integer) args[0]);
+                return unsupported(name);
+            }
+        });
+        editor = proxy(EditorEx.class, new Handler() {
+            private final Map<Key, Object> userData = new HashMap<Key, Object>();
+
+            protected Object call(String name, Object[] args) {
+                if (name.equals("getDocument")) return document;
+                if (name.equals("getFoldingModel")) return foldingModel;
+                if (name.equals("getProject")) return null;
+                if (name.equals("getUserData")) return userData.get(args[0]);
+                if (name.equals("putUserData")) return userData.put((Key) args[0], args[1]);
+                return unsupported(name);
+            }
+        });
+    }
+
+    public DocumentEx getDocument() {
+        return document;
+    }
+
+    public EditorEx getEditor() {
+        return editor;
+    }
+
+    /**
+     * Returns the collapsed fold regions of the document, sorted by offset.
+     *
+     * @return the fold regions
+     */
+    public FoldRegion[] getFoldRegions() {
+        return foldRegions;
+    }
+
+    /**
+     * Returns the range highlighters of the document, sorted by offset. None
+     * of them marks a problem.
+     *
+     * @return the highlighters
+     */
+    public RangeHighlighterEx[] getHighlighters() {
+        return highlighters;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Changes the modification stamp of the document as an edit would,
+     * without changing its text.
+     */
+    public void touch() {
+        stamp++;
+    }
+
+    private int getLineNumber(int offset) {
+        final int i = Arrays.binarySearch(lineStarts, offset);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    private int getLineEndOffset(int line) {
+        return line + 1 < lineStarts.length ? lineStarts[line + 1] - 1 : text.length();
+    }
+
+    /**
+     * Returns the fold region hiding the given offset, or null if there is
+     * none.
+     */
+    private FoldRegion getFoldRegionAt(int offset) {
+        for (FoldRegion region : foldRegions) {
+            if (region.getStartOffset() <= offset && offset < region.getEndOffset()) return region;
+        }
+        return null;
+    }
+
+    /**
+     * Creates a valid, collapsed range marker of the given type over the given
+     * offsets.
+     */
+    private <T> T createRange(Class<T> type, final int startOffset, final int endOffset) {
+        return proxy(type, new Handler() {
+            protected Object call(String name, Object[] args) {
+                if (name.equals("getStartOffset")) return startOffset;
+                if (name.equals("getEndOffset")) return endOffset;
+                if (name.equals("getDocument")) return document;
+                if (name.equals("isValid")) return true;
+                if (name.equals("isExpanded")) return false;
+                if (name.equals("isThinErrorStripeMark")) return false;
+                if (name.equals("getErrorStripeTooltip")) return null;
+                if (name.equals("getErrorStripeMarkColor")) return null;
+                return unsupported(name);
+            }
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(SyntheticDocument.class.getClassLoader(),
+                new Class[] { type }, handler));
+    }
+
+    /**
+     * An invocation handler giving proxies identity semantics.
+     */
+    private static abstract class Handler implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            final String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) return proxy == args[0];
+                if (name.equals("hashCode")) return System.identityHashCode(proxy);
+                return getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            return call(name, args);
+        }
+
+        protected abstract Object call(String name, Object[] args);
+
+        protected Object unsupported(String name) {
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.kano.codeoutline.benchmarks;
+
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import net.kano.codeoutline.OutlineSource;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link SyntheticDocument} as an {@link OutlineSource}, colored by a crude
+ * Java tokenizer the way a highlighter would: keywords, string literals,
+ * comments and everything else each get a color, and the text of the
+ * document's highlighters gets a background.
+ */
+public class SyntheticSource implements OutlineSource {
+    private static final int DEFAULT_FG = 0xFF000000;
+    private static final int KEYWORD_FG = 0xFF000080;
+    private static final int STRING_FG = 0xFF008000;
+    private static final int COMMENT_FG = 0xFF808080;
+    private static final int FOLD_FG = 0xFF606060;
+    private static final int HIGHLIGHT_BG = 0xFFFFF0B0;
+    private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList(
+            "public", "private", "final", "int", "if", "return", "class", "static", "void"));
+
+    private final String text;
+    private final int[] foldStarts;
+    private final int[] foldEnds;
+    private final int[] highlightStarts;
+    private final int[] highlightEnds;
+
+    public SyntheticSource(SyntheticDocument document) {
+        text = document.getText();
+
+        final FoldRegion[] folds = document.getFoldRegions();
+        foldStarts = new int[folds.length];
+        foldEnds = new int[folds.length];
+        for (int i = 0; i < folds.length; i++) {
+            foldStarts[i] = folds[i].getStartOffset();
+            foldEnds[i] = folds[i].getEndOffset();
+        }
+
+        final RangeHighlighterEx[] highlighters = document.getHighlighters();
+        highlightStarts = new int[highlighters.length];
+        highlightEnds = new int[highlighters.length];
+        for (int i = 0; i < highlighters.length; i++) {
+            highlightStarts[i] = highlighters[i].getStartOffset();
+            // highlighters spanning two lines may end after the next one
+            highlightEnds[i] = Math.max(i == 0 ? 0 : highlightEnds[i - 1], highlighters[i].getEndOffset());
+        }
+    }
+
+    public CharSequence getChars() {
+        return text;
+    }
+
+    public int getTabSize() {
+        return 4;
+    }
+
+    public String getFontName() {
+        return "Monospaced";
+    }
+
+    public void process(int startOffset, int endOffset, Visitor visitor) {
+        int fold = firstEndingAfter(foldEnds, startOffset);
+        int highlight = firstEndingAfter(highlightEnds, startOffset);
+        int offset = startOffset;
+        while (offset < endOffset) {
+            if (fold < foldStarts.length && foldStarts[fold] <= offset) {
+                final int end = Math.min(endOffset, foldEnds[fold]);
+                if (!visitor.visitFold(offset, end, "{...}", FOLD_FG)) return;
+                offset = end;
+                fold++;
+                continue;
+            }
+
+            int end = getTokenEnd(offset, endOffset);
+            if (fold < foldStarts.length) end = Math.min(end, foldStarts[fold]);
+
+            while (highlight < highlightEnds.length && highlightEnds[highlight] <= offset) highlight++;
+            final boolean highlighted = highlight < highlightStarts.length && highlightStarts[highlight] <= offset;
+            if (!visitor.visitSpan(offset, end, getColor(offset, end), highlighted ? HIGHLIGHT_BG : 0)) return;
+            offset = end;
+        }
+    }
+
+    /**
+     * Returns the end of the token starting at the given offset: a run of
+     * whitespace, a word, a string literal, a comment to the end of its line,
+     * or a single other character.
+     */
+    private int getTokenEnd(int offset, int limit) {
+        final char c = text.charAt(offset);
+        int end = offset + 1;
+        if (Character.isWhitespace(c)) {
+            while (end < limit && Character.isWhitespace(text.charAt(end))) end++;
+        } else if (Character.isJavaIdentifierPart(c)) {
+            while (end < limit && Character.isJavaIdentifierPart(text.charAt(end))) end++;
+        } else if (c == '"') {
+            while (end < limit && text.charAt(end) != '"' && text.charAt(end) != '\n') end++;
+            if (end < limit && text.charAt(end) == '"') end++;
+        } else if (c == '/' && end < limit && (text.charAt(end) == '/' || text.charAt(end) == '*')) {
+            while (end < limit && text.charAt(end) != '\n') end++;
+        }
+        return end;
+    }
+
+    private int getColor(int start, int end) {
+        final char c = text.charAt(start);
+        if (c == '"') return STRING_FG;
+        if (c == '/' && end - start > 1) return COMMENT_FG;
+        if (Character.isJavaIdentifierStart(c) && KEYWORDS.contains(text.substring(start, end))) return KEYWORD_FG;
+        return DEFAULT_FG;
+    }
+
+    /**
+     * Returns the index of the first of the given sorted ends after the given
+     * offset.
+     */
+    private static int firstEndingAfter(int[] ends, int offset) {
+        int low = 0;
+        int high = ends.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (ends[mid] <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,101 @@
+package net.kano.codeoutline.benchmarks;
+
+import net.kano.codeoutline.IndexedImages;
+import net.kano.codeoutline.OutlineTile;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures getting the images of a tile ready for rendering, as rendering
+ * after {@link net.kano.codeoutline.CodeOutlineImage#repaintCode} changed the
+ * width or invalidated tiles does: allocating a new foreground and background
+ * image, against clearing a pooled pair. Also measures compacting a rendered
+ * tile to an indexed image and expanding it again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Djava.awt.headless=true" })
+public class TileImageBenchmark {
+    private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+    private static final Color[] TOKEN_COLORS = {
+            new Color(0, 0, 128), new Color(0, 128, 0), new Color(128, 128, 128),
+            new Color(102, 14, 122), new Color(0, 0, 0) };
+
+    @Param({ "100", "300" })
+    public int width;
+
+    private BufferedImage[] pooled;
+    private BufferedImage rendered;
+    private BufferedImage compacted;
+
+    @Setup
+    public void setUp() {
+        pooled = allocate();
+        rendered = new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE);
+        final String text = new SyntheticDocument(OutlineTile.ROWS, 0, 0).getText();
+        final Graphics2D g = rendered.createGraphics();
+        try {
+            // one pixel per character, two pixel rows per line, as the outline draws them
+            int x = 0;
+            int y = 1;
+            for (int i = 0; i < text.length() && y < OutlineTile.HEIGHT; i++) {
+                final char c = text.charAt(i);
+                if (c == '\n') {
+                    x = 0;
+                    y += 2;
+                } else {
+                    if (!Character.isWhitespace(c) && x < width) {
+                        g.setColor(TOKEN_COLORS[(i / 7) % TOKEN_COLORS.length]);
+                        g.fillRect(x, y, 1, 2);
+                    }
+                    x++;
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        compacted = IndexedImages.compact(rendered);
+    }
+
+    private BufferedImage[] allocate() {
+        return new BufferedImage[] {
+                new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE),
+                new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE) };
+    }
+
+    @Benchmark
+    public BufferedImage[] allocateTile() {
+        return allocate();
+    }
+
+    @Benchmark
+    public BufferedImage[] clearPooledTile() {
+        for (BufferedImage img : pooled) {
+            final Graphics2D g = img.createGraphics();
+            try {
+                g.setBackground(TRANSPARENT);
+                g.clearRect(0, 0, img.getWidth(), img.getHeight());
+            } finally {
+                g.dispose();
+            }
+        }
+        return pooled;
+    }
+
+    @Benchmark
+    public BufferedImage compactTile() {
+        return IndexedImages.compact(rendered);
+    }
+
+    @Benchmark
+    public BufferedImage expandTile() {
+        IndexedImages.copy(compacted, pooled[0]);
+        return pooled[0];
+    }
+}
@@ -0,0 +1,189 @@
+package net.kano.codeoutline;
+
+import java.util.Arrays;
+
+/**
+ * Measures rows of text as blocks: the column a row's text starts at after
+ * its indentation, the number of columns to the end of its last visible
+ * character, and the color most of its visible characters are drawn in.
+ * <p>
+ * As a visitor, it measures the spans and folds of an {@link OutlineSource}
+ * row by row, reporting each row to a
+ * {@link OutlineBlockSource.BlockVisitor} when a line break ends it, and the
+ * last one when {@link #finish} is called. A block can also be packed into a
+ * <code>long</code>, for keeping one per line.
+ */
+public class BlockMeasure implements OutlineSource.Visitor {
+    /** The widest indentation and length kept in a packed block. */
+    private static final int MAX_COLUMNS = 0xFFFF;
+
+    private final CharSequence chars;
+    private final int tabSize;
+    private final OutlineBlockSource.BlockVisitor visitor;
+    private boolean stopped = false;
+
+    private int column = 0;
+    /** The column of the first visible character, or -1 if there is none yet. */
+    private int indent = -1;
+    /** The column after the last visible character. */
+    private int end = 0;
+    /** The colors of the visible characters so far, with how many each drew. */
+    private int[] colors = new int[4];
+    private int[] counts = new int[4];
+    private int colorCount = 0;
+
+    /**
+     * Creates a measure of the given text.
+     *
+     * @param chars the text the spans visited are in
+     * @param tabSize the number of columns between tab stops
+     * @param visitor the visitor to report rows to, or <code>null</code> if
+     *        the measure is only used through {@link #add}
+     */
+    public BlockMeasure(CharSequence chars, int tabSize, OutlineBlockSource.BlockVisitor visitor) {
+        this.chars = chars;
+        this.tabSize = Math.max(1, tabSize);
+        this.visitor = visitor;
+    }
+
+    public boolean visitSpan(int startOffset, int endOffset, int foreground, int background) {
+        for (int i = startOffset; ; i++) {
+            i = add(chars, i, endOffset, foreground);
+            if (i >= endOffset) return true;
+            if (!endRow()) return false;
+        }
+    }
+
+    public boolean visitFold(int startOffset, int endOffset, String placeholder, int foreground) {
+        add(placeholder, 0, placeholder.length(), foreground);
+        return true;
+    }
+
+    /**
+     * Reports the row measured since the last line break, unless the visitor
+     * stopped processing already.
+     *
+     * @return whether the visitor went on
+     */
+    public boolean finish() {
+        return !stopped && endRow();
+    }
+
+    private boolean endRow() {
+        final int length = getLength();
+        final int color = getColor();
+        final int start = Math.max(0, indent);
+        reset();
+        stopped = !visitor.visitBlock(start, length, color);
+        return !stopped;
+    }
+
+    /**
+     * Forgets the row measured so far.
+     */
+    public void reset() {
+        column = 0;
+        indent = -1;
+        end = 0;
+        colorCount = 0;
+    }
+
+    /**
+     * Measures the given characters up to the first line break as part of
+     * the current row.
+     *
+     * @param text the characters to measure
+     * @param from the index of the first character
+     * @param to the index after the last character
+     * @param color the color the characters are drawn in
+     * @return the index of the line break, or <code>to</code> if there is none
+     */
+    public int add(CharSequence text, int from, int to, int color) {
+        int visible = 0;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c == '\n') {
+                count(color, visible);
+                return i;
+            }
+            if (c == '\t') {
+                column = (column / tabSize + 1) * tabSize;
+                continue;
+            }
+            if (c > ' ' && !Character.isWhitespace(c)) {
+                if (indent < 0) indent = column;
+                end = column + 1;
+                visible++;
+            }
+            column++;
+        }
+        count(color, visible);
+        return to;
+    }
+
+    private void count(int color, int visible) {
+        if (visible == 0) return;
+
+        for (int i = 0; i < colorCount; i++) {
+            if (colors[i] == color) {
+                counts[i] += visible;
+                return;
+            }
+        }
+        if (colorCount == colors.length) {
+            colors = Arrays.copyOf(colors, colorCount * 2);
+            counts = Arrays.copyOf(counts, colorCount * 2);
+        }
+        colors[colorCount] = color;
+        counts[colorCount] = visible;
+        colorCount++;
+    }
+
+    /**
+     * Returns the number of columns from the first visible character of the
+     * current row to the end of its last one.
+     *
+     * @return the length of the row's block
+     */
+    public int getLength() {
+        return indent < 0 ? 0 : end - indent;
+    }
+
+    /**
+     * Returns the color most of the visible characters of the current row are
+     * drawn in, the first of them if there is a tie.
+     *
+     * @return the dominant color, or zero if the row has no visible characters
+     */
+    public int getColor() {
+        int best = -1;
+        for (int i = 0; i < colorCount; i++) {
+            if (best < 0 || counts[i] > counts[best]) best = i;
+        }
+        return best < 0 ? 0 : colors[best];
+    }
+
+    /**
+     * Returns the block of the current row packed into a <code>long</code>,
+     * with its indentation and length cut to {@link #MAX_COLUMNS}.
+     *
+     * @return the packed block
+     */
+    public long getBlock() {
+        final long indentBits = Math.min(Math.max(0, indent), MAX_COLUMNS);
+        final long lengthBits = Math.min(getLength(), MAX_COLUMNS);
+        return indentBits << 48 | lengthBits << 32 | (getColor() & 0xFFFFFFFFL);
+    }
+
+    public static int getIndent(long block) {
+        return (int) (block >>> 48);
+    }
+
+    public static int getLength(long block) {
+        return (int) (block >>> 32) & MAX_COLUMNS;
+    }
+
+    public static int getColor(long block) {
+        return (int) block;
+    }
+}
@@ -0,0 +1,33 @@
+package net.kano.codeoutline;
+
+/**
+ * The number of times a cache had what was looked up and did not, shown
+ * through JMX as composite data.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+
+    public CacheStats(long hits, long misses) {
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the fraction of lookups which were hits, or zero if there were
+     * none.
+     *
+     * @return the hit rate, between zero and one
+     */
+    public double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+}
@@ -33,47 +33,195 @@
  *  Modified 2011 - 2014, by Ivan Prisyazhniy <john.koepi@gmail.com>
  */
 
+
 package net.kano.codeoutline;
 
+import com.intellij.openapi.application.Application;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ex.ApplicationEx;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.FoldRegion;
 import com.intellij.openapi.editor.LogicalPosition;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.util.Computable;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Alarm;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
 /**
  * Manages the text outline image, keeping it synchronized with the current file
  * and painting it to the screen when requested.
+ * <p>
+ * The outline is stored as {@link OutlineTile}s. Only the tiles on screen and
+ * one tile above and below them are rendered, and the least recently used
+ * tiles are dropped when there are too many. Rendering happens on a pooled
+ * thread, starting with the tile under the middle of the editor's viewport
+ * and spiralling outwards, a chunk of tiles per read action, so what the user
+ * looks at shows up first and typing never waits for more than a chunk.
+ * Edits are collected as they happen and rendered in one go once typing
+ * pauses; each finished tile replaces the old one in a single step.
+ * <p>
+ * To fit a tall outline into a short panel, a mipmap level can be selected.
+ * All tiles are then kept downsampled to that level, each pixel row the
+ * average of 2<sup>level</sup> full size rows, and drawn scaled to the
+ * panel. Edited rows are rendered full size and downsampled again, so the
+ * levels never have to be rebuilt from the document.
+ * <p>
+ * With compact storage on, finished tiles are stored as indexed images when
+ * they use few enough colors; see {@link IndexedImages}.
+ * <p>
+ * One image may be shown by several panels whose editors fold the document
+ * the same way. Each of them reports the part of the outline it shows, and
+ * the tiles of all of them are kept.
+ * <p>
+ * The tiles of a file saved to disk are written to the {@link OutlineCache} on
+ * a pooled thread when the image is disposed, and shown from there before the
+ * first render of an image of the same unchanged file.
  */
 public class CodeOutlineImage {
 
     /** The logical position of the offset in a file. */
     public static final LogicalPosition LOGPOS_START = new LogicalPosition(0, 0);
     public static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+    /** How long to wait for more edits before rendering, in milliseconds. */
+    private static final int RENDER_DELAY = 100;
+    /** The number of tiles rendered above and below the visible ones. */
+    private static final int PREFETCH_TILES = 1;
+    /** The number of tiles kept, unless more are visible at once. */
+    private static final int MAX_TILES = 8;
+    /** The smallest mipmap level, at which eight lines share a pixel row. */
+    public static final int MAX_MIP_LEVEL = 3;
+    /**
+     * The number of threads rendering tiles while the render thread captures
+     * their text, or zero to render on the render thread alone. Capturing the
+     * spans for the workers stays on the render thread, and in the only
+     * measurement of a 200,000 line file so far it took longer than rendering
+     * the tiles there, so workers are off unless the
+     * <code>codeoutline.renderWorkers</code> system property asks for them,
+     * where the parallel render benchmark shows they pay off.
+     */
+    private static final int RENDER_WORKERS = Math.max(0, Math.min(Integer.getInteger("codeoutline.renderWorkers", 0),
+            Runtime.getRuntime().availableProcessors() - 1));
+    /** The number of tiles rendered in each read action, one per rendering thread. */
+    private static final int CHUNK_TILES = Math.max(1, RENDER_WORKERS + 1);
+
+    /** Runs render workers on pooled threads. */
+    private static final Executor renderExecutor = new Executor() {
+        public void execute(Runnable command) {
+            ApplicationManager.getApplication().executeOnPooledThread(command);
+        }
+    };
 
-    /** The editor being outlined. */
-    protected final Editor editor;
+    /** The editor being outlined, whose folds and color scheme are used. */
+    protected volatile Editor editor;
     /** The document being outlined. */
     protected final Document document;
 
-    /** The text outline image. */
-    protected BufferedImage fgImg = null;
-    protected BufferedImage bgImg = null;
+    /** The way the outline is drawn. */
+    protected volatile OutlineRenderMode renderMode = OutlineRenderMode.TEXT;
 
     /** An empty line. */
     protected int[] emptyLine = null;
 
     /** The width of the image visible to the user. */
-    protected int visibleImgWidth = 0;
+    protected volatile int visibleImgWidth = 0;
     /** The height of the image visible to the user. */
-    protected int visibleImgHeight = 0;
-    /** Vertical scale factor */
+    protected volatile int visibleImgHeight = 0;
+
+    /**
+     * The visible part of the outline by viewer, as the y coordinate of its
+     * top, its width and its height. Guarded by {@link #tiles}.
+     */
+    private final Map<Object, Rectangle> windows = new HashMap<Object, Rectangle>();
+    /**
+     * The y coordinate in the outline each viewer is centred on, which is
+     * rendered first. Guarded by {@link #tiles}.
+     */
+    private final Map<Object, Integer> focuses = new HashMap<Object, Integer>();
+
+    /** The graphics configuration of the outline, once it was painted. */
+    private volatile GraphicsConfiguration graphicsConfiguration = null;
+
+    /**
+     * The rendered tiles by index, least recently used first. Guarded by
+     * itself, as are the tiles' pending changes.
+     */
+    private final Map<Integer, OutlineTile> tiles = new LinkedHashMap<Integer, OutlineTile>(16, 0.75f, true);
+    /**
+     * Tiles which render workers still read from, and which must not be
+     * dropped yet. Guarded by {@link #tiles}.
+     */
+    private final Set<OutlineTile> pinned = new HashSet<OutlineTile>();
+    /** Images of tiles no longer on screen, which can be rendered into again. */
+    private final List<BufferedImage[]> imagePool = new ArrayList<BufferedImage[]>();
+    /** The downsampled tiles of the whole outline by index. Guarded by {@link #tiles}. */
+    private final Map<Integer, OutlineTile> mipTiles = new HashMap<Integer, OutlineTile>();
+    /** The mipmap level the outline is drawn at, or zero to draw it full size. */
+    private volatile int mipLevel = 0;
+    /** Whether finished tiles are stored as indexed images. */
+    private volatile boolean compactStorage = false;
+
+    /** Incremented whenever a render in progress becomes out of date. */
+    private volatile int generation = 0;
+    /** The generation the render in progress started at. */
+    private volatile int renderGeneration = 0;
+    /** The number of times the fold state changed. */
+    private volatile int foldVersion = 0;
+    /** Whether a render has been scheduled but not started yet. */
+    private volatile boolean renderScheduled = false;
+    /** Whether this image has been disposed. */
+    private volatile boolean disposed = false;
+    /** Whether the outline cache was looked at. */
+    private volatile boolean cacheChecked = false;
+    /** The key the tiles were restored from the outline cache under, if they were. */
+    private volatile String restoredKey = null;
+
+    /** Serializes renders. */
+    private final Object renderLock = new Object();
+    /** Schedules renders on a pooled thread. */
+    private final Alarm renderAlarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD);
 
     /** The listener listening to this image. */
     private final CodeOutlineListener listener;
+    /** The highlighting of the lines rendered so far, replayed by later renders. */
+    private final LineRunCache runs;
+    /** The number of listeners attached to the document and not removed yet. */
+    private int listenerCount = 0;
+
+    /** Renders the outline on the render thread. */
+    private final Runnable renderTask = new Runnable() {
+        public void run() {
+            renderScheduled = false;
+            if (disposed) return;
+            try {
+                render();
+            } catch (Exception ex) {
+                listener.handleException(CodeOutlineImage.this, ex);
+            }
+        }
+    };
 
     /** A document listener to listen for changes in the document. */
     private final DocumentListener docListener = new DocumentListener() {
@@ -98,9 +246,22 @@ public class CodeOutlineImage {
 
         public void documentChanged(DocumentEvent e) {
             try {
-                refreshImage();
+                final int startLine = document.getLineNumber(e.getOffset());
+                final int newEndLine = document.getLineNumber(e.getOffset() + e.getNewLength());
+
+                // only the changed lines are re-rendered; everything below
+                // them is moved up or down by the number of lines added or
+                // removed
+                if (oldend == null) {
+                    runs.clear();
+                    invalidate();
+                } else {
+                    addPendingEdit(startLine, oldend.line, newEndLine);
+                }
             } catch (Exception ex) {
                 listener.handleException(CodeOutlineImage.this, ex);
+            } finally {
+                oldend = null;
             }
         }
     };
@@ -118,8 +279,10 @@ public class CodeOutlineImage {
         this.editor = editor;
         this.document = editor.getDocument();
         this.listener = listener;
+        this.runs = new LineRunCache(document);
 
         init();
+        CodeOutlineMetrics.getInstance().imageCreated(this);
     }
 
     /**
@@ -127,109 +290,1236 @@ public class CodeOutlineImage {
      */
     private void init() {
         document.addDocumentListener(docListener);
+        listenerCount++;
     }
 
     /**
      * Removes listeners and flushes the code outline image data.
      */
     public void dispose() {
+        try {
+            saveToCache();
+        } catch (Exception ex) {
+            listener.handleException(this, ex);
+        }
+        disposed = true;
+        generation++;
         document.removeDocumentListener(docListener);
+        listenerCount--;
+        CodeOutlineMetrics.getInstance().imageDisposed(this);
+        renderAlarm.dispose();
 
-        if (fgImg != null) fgImg.flush();
-        if (bgImg != null) bgImg.flush();
+        // a render still running notices the image was disposed and drops
+        // its result
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                tile.fg.flush();
+                tile.bg.flush();
+            }
+            for (OutlineTile tile : mipTiles.values()) {
+                tile.fg.flush();
+                tile.bg.flush();
+            }
+            for (BufferedImage[] images : imagePool) {
+                images[0].flush();
+                images[1].flush();
+            }
+            tiles.clear();
+            mipTiles.clear();
+            imagePool.clear();
+            windows.clear();
+            focuses.clear();
+        }
     }
 
+    /**
+     * Makes the outline follow the folds and color scheme of another editor of
+     * the same document, folded the same way. The tiles are kept; a render in
+     * progress is restarted.
+     *
+     * @param editor an editor of the outlined document
+     */
+    public void setEditor(Editor editor) {
+        // the other editor may fold single lines differently
+        runs.foldsChanged();
+        synchronized (tiles) {
+            this.editor = editor;
+            generation++;
+        }
+        scheduleRender(0);
+    }
 
     /**
-     * Clears the backing image and re-renders it from the editor text.
+     * Discards the backing image and re-renders it from the editor text in the
+     * background.
      */
     public void refreshImage() {
-        if (fgImg == null || bgImg == null) return;
+        runs.clear();
+        invalidate();
+    }
 
-        resetImage(fgImg);
-        resetImage(bgImg);
+    /**
+     * Marks the image as out of date, so the whole document is rendered again.
+     */
+    public void invalidate() {
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                tile.invalid = true;
+            }
+            for (OutlineTile tile : mipTiles.values()) {
+                tile.invalid = true;
+            }
+            generation++;
+        }
+        scheduleRender(0);
     }
 
-    private void resetImage(BufferedImage img) {
-        final Graphics2D g = img.createGraphics();
-        g.setBackground(TRANSPARENT);
-        g.clearRect(0, 0, visibleImgWidth, visibleImgHeight);
+    /**
+     * Selects the mipmap level to draw the outline at. At levels above zero,
+     * the whole outline is kept downsampled and drawn by
+     * {@link #drawBackground} and {@link #drawForeground} into a graphics
+     * scaled to 2<sup>level</sup> times the size of the images.
+     *
+     * @param level a level between zero and {@link #MAX_MIP_LEVEL}
+     */
+    public void setMipLevel(int level) {
+        level = Math.max(0, Math.min(MAX_MIP_LEVEL, level));
+        if (mipLevel == level) return;
+
+        synchronized (tiles) {
+            mipLevel = level;
+            mipTiles.clear();
+            generation++;
+        }
+        scheduleRender(0);
+    }
+
+    /**
+     * Selects whether finished tiles are stored as indexed images, rendering
+     * the outline again if this changed.
+     *
+     * @param compactStorage whether to store tiles as indexed images
+     */
+    public void setCompactStorage(boolean compactStorage) {
+        if (this.compactStorage == compactStorage) return;
+
+        this.compactStorage = compactStorage;
+        invalidate();
+    }
+
+    /**
+     * Returns the number of listeners this image has attached to its document
+     * and not removed yet.
+     *
+     * @return the number of attached listeners
+     */
+    public int getListenerCount() {
+        return listenerCount;
+    }
+
+    /**
+     * Returns the number of bytes of pixel data held by this image's tiles,
+     * including images kept for reuse.
+     *
+     * @return the size of this image's pixel data in bytes
+     */
+    public long getImageBytes() {
+        long bytes = 0;
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                bytes += IndexedImages.getByteSize(tile.fg) + IndexedImages.getByteSize(tile.bg);
+            }
+            for (OutlineTile tile : mipTiles.values()) {
+                bytes += IndexedImages.getByteSize(tile.fg) + IndexedImages.getByteSize(tile.bg);
+            }
+            for (BufferedImage[] images : imagePool) {
+                bytes += IndexedImages.getByteSize(images[0]) + IndexedImages.getByteSize(images[1]);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the mipmap level the outline is drawn at.
+     *
+     * @return the current mipmap level
+     */
+    public int getMipLevel() {
+        return mipLevel;
+    }
+
+    /**
+     * Changes the way the outline is drawn, rendering it again if the mode
+     * changed.
+     *
+     * @param renderMode the new render mode
+     */
+    public void setRenderMode(OutlineRenderMode renderMode) {
+        if (this.renderMode == renderMode) return;
+
+        this.renderMode = renderMode;
+        invalidate();
+    }
+
+    /**
+     * Notes that fold regions were collapsed or expanded, which changes the
+     * row of every line below them.
+     */
+    public void foldsChanged() {
+        runs.foldsChanged();
+        foldVersion++;
+        invalidate();
+    }
+
+    /**
+     * Notes that a highlighter between the given offsets was added, removed or
+     * changed. The highlighting of its lines is looked up again, and their
+     * rows are rendered again once no more changes come in.
+     *
+     * @param startOffset the start of the highlighter
+     * @param endOffset the end of the highlighter
+     */
+    public void markupChanged(int startOffset, int endOffset) {
+        final int length = document.getTextLength();
+        final int firstLine = document.getLineNumber(Math.max(0, Math.min(startOffset, length)));
+        final int lastLine = document.getLineNumber(Math.max(0, Math.min(endOffset, length)));
+        runs.linesChanged(firstLine, lastLine);
+        highlightingChanged(firstLine, lastLine);
+        scheduleRender(RENDER_DELAY);
+    }
+
+    /**
+     * Records an edit which replaced the lines between <code>startLine</code>
+     * and <code>oldEndLine</code> by the lines between <code>startLine</code>
+     * and <code>newEndLine</code>. The pixel rows below the changed region
+     * will be shifted and only the changed lines rendered again.
+     *
+     * @param startLine the first changed line
+     * @param oldEndLine the last changed line before the change
+     * @param newEndLine the last changed line after the change
+     */
+    protected void addPendingEdit(int startLine, int oldEndLine, int newEndLine) {
+        runs.linesReplaced(startLine, oldEndLine, newEndLine);
+        final int startOffset = document.getLineStartOffset(startLine);
+        final int endOffset = document.getLineEndOffset(newEndLine);
+        final boolean collapsed = isCollapsed(startOffset, endOffset);
+
+        // the rows are computed now, while the fold layout still matches the
+        // edit
+        final int startRow = collapsed ? 0 : getVisualRow(startLine);
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                if (collapsed) {
+                    tile.invalid = true;
+                } else {
+                    tile.edit(startRow, startRow + oldEndLine - startLine, startRow + newEndLine - startLine);
+                }
+            }
+            for (OutlineTile tile : mipTiles.values()) {
+                if (collapsed) {
+                    tile.invalid = true;
+                } else {
+                    tile.edit(startRow, startRow + oldEndLine - startLine, startRow + newEndLine - startLine);
+                }
+            }
+            generation++;
+        }
+        scheduleRender(RENDER_DELAY);
+    }
+
+    /**
+     * Schedules a render after the given delay, replacing any render scheduled
+     * before.
+     *
+     * @param delay the delay in milliseconds
+     */
+    private void scheduleRender(int delay) {
+        if (disposed) return;
+
+        renderScheduled = true;
+        renderAlarm.cancelAllRequests();
+        renderAlarm.addRequest(renderTask, delay);
+    }
+
+    /**
+     * Renders the tiles near the visible part of the outline. If the document
+     * changes in the meantime, the render is abandoned and scheduled again.
+     */
+    private void render() {
+        synchronized (renderLock) {
+            if (disposed) return;
+
+            if (!cacheChecked && graphicsConfiguration != null) {
+                cacheChecked = true;
+                restoreFromCache();
+            }
+            renderGeneration = generation;
+            final long start = System.nanoTime();
+            final boolean done = renderVisibleTiles();
+            CodeOutlineMetrics.getInstance().renderPassFinished(System.nanoTime() - start);
+            if (!done) scheduleRender(RENDER_DELAY);
+        }
+    }
+
+    /**
+     * Renders the visible tiles, then the ones just above and below them, in
+     * the order given by {@link #getRenderOrder}. Each chunk of
+     * {@link #CHUNK_TILES} tiles is rendered in a read action of its own, so
+     * the document can't change while it is rendered, and is repainted as soon
+     * as it is done. A write action waiting for the read lock runs between two
+     * chunks; the cancelled chunk is then rendered again, unless the write
+     * changed the outline.
+     *
+     * @return whether rendering finished; <code>false</code> if it was
+     *         cancelled
+     */
+    private boolean renderVisibleTiles() {
+        // nothing to do until the outline is painted for the first time
+        if (graphicsConfiguration == null) return true;
+
+        final Application application = ApplicationManager.getApplication();
+        final int level = mipLevel;
+        final int[] rowCount = new int[1];
+        final List<Integer> order = application.runReadAction(new Computable<List<Integer>>() {
+            public List<Integer> compute() {
+                rowCount[0] = getVisualRow(document.getLineCount() - 1) + 1;
+                return getRenderOrder(level, rowCount[0]);
+            }
+        });
+
+        for (int i = 0; i < order.size(); ) {
+            if (disposed || renderGeneration != generation) return false;
+
+            final List<Integer> chunk = order.subList(i, Math.min(i + CHUNK_TILES, order.size()));
+            final Boolean done = application.runReadAction(new Computable<Boolean>() {
+                public Boolean compute() {
+                    return renderChunk(chunk, level, rowCount[0]);
+                }
+            });
+            // a chunk cancelled for a write action is tried again, and its read
+            // action waits for the write to finish
+            if (done) i += chunk.size();
+        }
+        return true;
+    }
+
+    /**
+     * Renders the given tiles. Must be called inside a read action.
+     *
+     * @return whether rendering finished; <code>false</code> if it was
+     *         cancelled
+     */
+    private boolean renderChunk(List<Integer> indexes, int level, int rowCount) {
+        if (isRenderCancelled()) return false;
+
+        // highlighting changes since the last chunk are picked up, so the
+        // tiles rendered so far are brought up to date by the next render
+        OutlineSource source = getSource();
+        if (source != null) {
+            for (int[] lines : runs.update(editor, source)) {
+                highlightingChanged(lines[0], lines[1]);
+            }
+            source = runs;
+        }
+        // blocks are drawn straight from the line run cache, which is quicker
+        // than capturing spans for the workers
+        if (RENDER_WORKERS > 0 && indexes.size() > 1 && source != null && renderMode != OutlineRenderMode.BLOCK) {
+            return renderInParallel(indexes, level, rowCount, source);
+        }
+        for (int i : indexes) {
+            if (level > 0 ? !renderMipTile(i, level, rowCount, source) : renderTile(i, rowCount, source) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the indexes of the tiles to render, in the order to render them.
+     * The visible tiles of each viewer come first, starting with the one it is
+     * centred on and alternating below and above it; the tiles just above and
+     * below them follow the same way. At a mipmap level, all tiles are
+     * rendered, spiralling out from the visible ones.
+     *
+     * @param level the mipmap level rendered at
+     * @param rowCount the number of rows of the outline
+     * @return the indexes of the tiles to render
+     */
+    private List<Integer> getRenderOrder(int level, int rowCount) {
+        final int lastTile = (rowCount - 1) / OutlineTile.ROWS;
+        final Map<Object, Rectangle> visible;
+        final Map<Object, Integer> centres;
+        synchronized (tiles) {
+            if (level > 0) {
+                for (Iterator<Integer> it = mipTiles.keySet().iterator(); it.hasNext(); ) {
+                    if (it.next() > lastTile) it.remove();
+                }
+            }
+            visible = new HashMap<Object, Rectangle>(windows);
+            centres = new HashMap<Object, Integer>(focuses);
+        }
+
+        final Set<Integer> order = new LinkedHashSet<Integer>();
+        final List<Integer> focusTiles = new ArrayList<Integer>();
+        for (Map.Entry<Object, Rectangle> entry : visible.entrySet()) {
+            final int first = getFirstVisibleTile(entry.getValue());
+            final int last = Math.min(getLastVisibleTile(entry.getValue()), lastTile);
+            if (first > last) continue;
+
+            final Integer focus = centres.get(entry.getKey());
+            final int focusTile = focus == null ? first : Math.max(first, Math.min(last, focus / OutlineTile.PITCH));
+            focusTiles.add(focusTile);
+            addSpiral(order, focusTile, first, last);
+        }
+        if (level > 0) {
+            if (focusTiles.isEmpty()) focusTiles.add(0);
+            for (int focusTile : focusTiles) {
+                addSpiral(order, focusTile, 0, lastTile);
+            }
+        } else {
+            for (Rectangle window : visible.values()) {
+                final int first = getFirstVisibleTile(window);
+                final int last = Math.min(getLastVisibleTile(window), lastTile);
+                for (int d = 1; d <= PREFETCH_TILES; d++) {
+                    if (last + d <= lastTile) order.add(last + d);
+                    if (first - d >= 0 && first - d <= lastTile) order.add(first - d);
+                }
+            }
+        }
+        return new ArrayList<Integer>(order);
+    }
+
+    /**
+     * Adds the tiles between <code>first</code> and <code>last</code> to the
+     * given set, starting at <code>centre</code> and alternating below and
+     * above it.
+     */
+    private static void addSpiral(Set<Integer> order, int centre, int first, int last) {
+        for (int d = 0; centre + d <= last || centre - d >= first; d++) {
+            if (centre + d <= last) order.add(centre + d);
+            if (d > 0 && centre - d >= first) order.add(centre - d);
+        }
+    }
+
+    /**
+     * Marks the rows of the given lines to be rendered again, as their
+     * highlighting changed after an edit above them or their markup changed.
+     */
+    private void highlightingChanged(int firstLine, int lastLine) {
+        final int startRow = getVisualRow(firstLine);
+        final int endRow = getVisualRow(lastLine);
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                tile.addDirtyRows(startRow, endRow);
+            }
+            for (OutlineTile tile : mipTiles.values()) {
+                tile.addDirtyRows(startRow, endRow);
+            }
+        }
+    }
+
+    /**
+     * Renders the given tiles on the render workers. The spans of the rows
+     * each tile needs rendered are captured here, inside the read action, and
+     * handed to a worker, which renders them, downsamples the tile if drawing
+     * at a mipmap level, and puts it in place. This thread holds on to the
+     * read lock until all workers are done, so the text can't change under
+     * them.
+     *
+     * @return whether rendering finished; <code>false</code> if it was
+     *         cancelled
+     */
+    private boolean renderInParallel(List<Integer> indexes, final int level, int rowCount, OutlineSource source) {
+        final ParallelRender render = new ParallelRender(renderExecutor, RENDER_WORKERS);
+        boolean done = true;
+        try {
+            for (final int index : indexes) {
+                if (isRenderCancelled()) {
+                    done = false;
+                    break;
+                }
+                if (level > 0 && isMipTileUpToDate(index, level)) continue;
+
+                final TileRender job = prepareTile(index, rowCount, true);
+                if (job.upToDate && level == 0) continue;
+
+                if (!job.upToDate) {
+                    job.snapshots = new OutlineSource[job.rows.size()];
+                    for (int i = 0; i < job.snapshots.length; i++) {
+                        final int[] rows = job.rows.get(i);
+                        job.snapshots[i] = SpanSnapshot.capture(source, rows[2], rows[3]);
+                    }
+                }
+                done = render.add(new ParallelRender.Band() {
+                    public boolean render() {
+                        final OutlineTile full = job.upToDate ? job.base : finishTile(job, null);
+                        return full != null && (level == 0 || downsampleTile(index, level, full));
+                    }
+                });
+                if (!done) break;
+            }
+        } finally {
+            if (!render.finish()) done = false;
+            synchronized (tiles) {
+                pinned.clear();
+            }
+        }
+        return done;
+    }
+
+    private static int getFirstVisibleTile(Rectangle window) {
+        return Math.max(0, window.y) / OutlineTile.PITCH;
+    }
+
+    private static int getLastVisibleTile(Rectangle window) {
+        return Math.max(0, window.y + window.height) / OutlineTile.PITCH;
+    }
+
+    /**
+     * Brings the given tile up to date, rendering only its changed rows if
+     * possible.
+     *
+     * @return the up to date tile, or <code>null</code> if rendering was
+     *         cancelled
+     */
+    private OutlineTile renderTile(int index, int rowCount, OutlineSource source) {
+        final TileRender job = prepareTile(index, rowCount, false);
+        return job.upToDate ? job.base : finishTile(job, source);
+    }
+
+    /**
+     * Works out what it takes to bring the given tile up to date: which rows
+     * to render, and whether the rest can be copied from the current tile.
+     * Pinned tiles are kept until the end of the render even if they are the
+     * least recently used.
+     *
+     * @param index the index of the tile
+     * @param rowCount the number of rows of the outline
+     * @param pin whether to pin the current tile
+     * @return the work to do on the tile
+     */
+    private TileRender prepareTile(int index, int rowCount, boolean pin) {
+        final TileRender job = new TileRender(index, visibleImgWidth, editor.getColorsScheme());
+        synchronized (tiles) {
+            final OutlineTile base = tiles.get(index);
+            job.base = base;
+            job.dirtyCount = base == null ? 0 : base.dirtyCount;
+            if (base != null && pin) pinned.add(base);
+            if (base != null && base.isUpToDate(job.width, foldVersion, job.scheme)) {
+                job.upToDate = true;
+                CodeOutlineMetrics.getInstance().tileLookedUp(true);
+                return job;
+            }
+            CodeOutlineMetrics.getInstance().tileLookedUp(false);
+
+            job.full = base == null || base.invalid || !base.matches(job.width, foldVersion, job.scheme);
+            job.shifts = job.full ? null : new ArrayList<int[]>(base.shifts);
+            if (job.full) {
+                job.rows.add(new int[] { index * OutlineTile.ROWS, index * OutlineTile.ROWS + OutlineTile.ROWS - 1 });
+            } else {
+                for (int[] range : base.dirty) {
+                    job.rows.add(new int[] { range[0], range[1] });
+                }
+            }
+            job.pin = pin;
+        }
 
-        genImage();
+        for (ListIterator<int[]> it = job.rows.listIterator(); it.hasNext(); ) {
+            final int[] range = it.next();
+            final int from = range[0];
+            final int to = Math.min(range[1], rowCount - 1);
+            if (to < from) {
+                it.remove();
+                continue;
+            }
+            // a collapsed fold on the last row takes all of its lines along
+            final int firstLine = getLogicalLine(from);
+            final int lastLine = to + 1 < rowCount ? getLogicalLine(to + 1) - 1 : document.getLineCount() - 1;
+            it.set(new int[] {
+                    from, to, document.getLineStartOffset(firstLine), document.getLineEndOffset(lastLine) });
+        }
+        return job;
     }
 
     /**
-     * Renders the text in the editor to the backing image.
+     * Renders the rows of a prepared tile from the given source, or from the
+     * snapshots captured for them, into new images, copying the rest from the
+     * current tile, and puts the new tile in place.
+     *
+     * @return the new tile, or <code>null</code> if rendering was cancelled
      */
-    private void genImage() {
-        renderToImg(LOGPOS_START);
+    private OutlineTile finishTile(TileRender job, OutlineSource source) {
+        final long start = System.nanoTime();
+        final BufferedImage[] images = obtainImages(job.width);
+        final OutlineTile tile = new OutlineTile(job.index, images[0], images[1]);
+        if (job.full) {
+            clearRows(tile.fg, 0, OutlineTile.HEIGHT);
+            clearRows(tile.bg, 0, OutlineTile.HEIGHT);
+        } else {
+            IndexedImages.copy(job.base.fg, tile.fg);
+            IndexedImages.copy(job.base.bg, tile.bg);
+            for (int[] shift : job.shifts) {
+                shiftRows(tile.fg, shift[0], shift[1]);
+                shiftRows(tile.bg, shift[0], shift[1]);
+            }
+        }
+
+        final int top = tile.getTop();
+        final OutlineRenderer renderer = new OutlineRenderer(renderMode) {
+            protected boolean isCancelled() {
+                return isRenderCancelled();
+            }
+        };
+        for (int i = 0; i < job.rows.size(); i++) {
+            final int[] rows = job.rows.get(i);
+            clearRows(tile.fg, getLineTop(rows[0]) - top, getLineTop(rows[1] + 1) - top);
+            clearRows(tile.bg, getLineTop(rows[0]) - top, getLineTop(rows[1] + 1) - top);
+            final OutlineSource rowSource = job.snapshots != null ? job.snapshots[i] : source;
+            if (rowSource != null) {
+                renderer.render(rowSource, rows[2], rows[3], tile.fg, tile.bg, getLineTop(rows[0]) - top);
+            }
+        }
+        tile.setRenderedWith(foldVersion, job.scheme);
+        final OutlineTile stored = compact(tile);
+        // the rendered images were never painted, so they can be reused now
+        if (stored != tile) recycle(images);
+
+        synchronized (tiles) {
+            // no edit can have happened since the pending changes were read,
+            // as we're still inside the read action
+            if (isRenderCancelled()) {
+                if (stored == tile) recycle(images);
+                return null;
+            }
+
+            final OutlineTile old = tiles.put(job.index, stored);
+            if (old != null) {
+                // markup may have changed while the tile was rendered
+                if (old == job.base) stored.addDirtyRowsSince(old, job.dirtyCount);
+                releaseLater(old);
+            }
+            if (job.pin) pinned.add(stored);
+
+            // when drawing downsampled, full size tiles are only kept for
+            // updating the downsampled ones
+            int visibleTiles = 0;
+            for (Rectangle window : windows.values()) {
+                visibleTiles += getLastVisibleTile(window) - getFirstVisibleTile(window) + 1 + 2 * PREFETCH_TILES;
+            }
+            final int maxTiles = mipLevel > 0 ? MAX_TILES : Math.max(MAX_TILES, visibleTiles);
+            for (Iterator<OutlineTile> it = tiles.values().iterator(); tiles.size() > maxTiles && it.hasNext(); ) {
+                final OutlineTile dropped = it.next();
+                if (pinned.contains(dropped)) continue;
+                releaseLater(dropped);
+                it.remove();
+            }
+        }
+        publish();
+        CodeOutlineMetrics.getInstance().tileRendered(System.nanoTime() - start);
+        return stored;
     }
 
+    /**
+     * Returns whether the given downsampled tile is up to date at the given
+     * level.
+     */
+    private boolean isMipTileUpToDate(int index, int level) {
+        final int width = visibleImgWidth;
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        synchronized (tiles) {
+            final OutlineTile tile = mipTiles.get(index);
+            return tile != null && tile.level == level && tile.isUpToDate(width, foldVersion, scheme);
+        }
+    }
 
     /**
-     * Renders the given characters to the code outline image starting at the
-     * given position.
+     * Brings the given downsampled tile up to date, bringing the full size
+     * tile up to date first if needed.
      *
-     * @param pos the position at which to start rendering
+     * @return whether the tile is up to date; <code>false</code> if rendering
+     *         was cancelled
      */
-    private void renderToImg(LogicalPosition pos) {
-        if (fgImg == null || bgImg == null) return;
+    private boolean renderMipTile(int index, int level, int rowCount, OutlineSource source) {
+        if (isMipTileUpToDate(index, level)) return true;
 
-        final CharSequence chars = document.getCharsSequence();
-        renderToImg(chars, 0, chars.length(), pos);
+        final OutlineTile full = renderTile(index, rowCount, source);
+        return full != null && downsampleTile(index, level, full);
     }
 
     /**
-     * Renders the given characters to the code outline image starting at the
-     * given position.
+     * Brings the given downsampled tile up to date from the given up to date
+     * full size tile. Only the pixel rows of its changed rows are downsampled
+     * again, unless rows moved or the tile was never downsampled.
      *
-     * @param chars a character array
-     * @param offset the offset into the given array to start rendering
-     * @param len the number of characters to render
-     * @param pos the position at which to start rendering
+     * @return whether the tile is up to date; <code>false</code> if rendering
+     *         was cancelled
      */
-    protected void renderToImg(CharSequence chars, int offset, int len, LogicalPosition pos) {
+    private boolean downsampleTile(int index, int level, OutlineTile source) {
+        final int width = visibleImgWidth;
+        final EditorColorsScheme scheme = editor.getColorsScheme();
 
+        final OutlineTile base;
+        final int dirtyCount;
+        final boolean full;
+        final List<int[]> rows = new ArrayList<int[]>();
+        synchronized (tiles) {
+            base = mipTiles.get(index);
+            if (base != null && base.level == level && base.isUpToDate(width, foldVersion, scheme)) return true;
+
+            dirtyCount = base == null ? 0 : base.dirtyCount;
+
+            full = base == null || base.level != level || base.invalid || !base.shifts.isEmpty()
+                    || !base.matches(width, foldVersion, scheme);
+            if (!full) {
+                for (int[] range : base.dirty) {
+                    rows.add(new int[] { range[0], range[1] });
+                }
+            }
+        }
+
+        final int height = OutlineTile.getHeight(level);
+        OutlineTile tile = new OutlineTile(index, level,
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE),
+                new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE));
+        // the pixel rows to downsample, as {first, after last} pairs
+        final List<int[]> bands = new ArrayList<int[]>();
+        if (full) {
+            bands.add(new int[] { 0, height });
+        } else {
+            IndexedImages.copy(base.fg, tile.fg);
+            IndexedImages.copy(base.bg, tile.bg);
+            for (int[] range : rows) {
+                bands.add(new int[] {
+                        (getLineTop(range[0]) - tile.getTop()) >> level,
+                        ((getLineTop(range[1] + 1) - tile.getTop() - 1) >> level) + 1 });
+            }
+        }
+        BufferedImage srcFg = source.fg;
+        BufferedImage srcBg = source.bg;
+        BufferedImage[] scratch = null;
+        if (source.fg.getType() != BufferedImage.TYPE_INT_ARGB_PRE) {
+            // a compacted tile is expanded to be downsampled
+            scratch = obtainImages(width);
+            IndexedImages.copy(source.fg, scratch[0]);
+            IndexedImages.copy(source.bg, scratch[1]);
+            srcFg = scratch[0];
+            srcBg = scratch[1];
+        }
+        for (int[] band : bands) {
+            downsample(srcFg, tile.fg, level, band[0], band[1]);
+            downsample(srcBg, tile.bg, level, band[0], band[1]);
+        }
+        if (scratch != null) recycle(scratch);
+        tile.setRenderedWith(foldVersion, scheme);
+        tile = compact(tile);
+
+        synchronized (tiles) {
+            if (isRenderCancelled()) return false;
+            if (mipLevel == level) {
+                final OutlineTile old = mipTiles.put(index, tile);
+                if (old != null && old == base) tile.addDirtyRowsSince(old, dirtyCount);
+            }
+        }
+        publish();
+        return true;
     }
 
+    /**
+     * Writes the given pixel rows of a downsampled image, each the average of
+     * 2<sup>level</sup> rows of the full size image. Both images must be
+     * premultiplied and backed by an int array.
+     *
+     * @param src the full size image
+     * @param dst the downsampled image
+     * @param level the mipmap level of the downsampled image
+     * @param fromY the first row of the downsampled image to write
+     * @param toY the row after the last row to write
+     */
+    private static void downsample(BufferedImage src, BufferedImage dst, int level, int fromY, int toY) {
+        final int[] srcPixels = ((DataBufferInt) src.getRaster().getDataBuffer()).getData();
+        final int[] dstPixels = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        final int srcStride = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        final int dstStride = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        final int width = Math.min(src.getWidth(), dst.getWidth());
+        final int factor = 1 << level;
+
+        fromY = Math.max(0, fromY);
+        toY = Math.min(dst.getHeight(), toY);
+        for (int y = fromY; y < toY; y++) {
+            final int first = y << level;
+            final int last = Math.min(src.getHeight(), first + factor);
+            for (int x = 0; x < width; x++) {
+                int a = 0, r = 0, g = 0, b = 0;
+                for (int sy = first; sy < last; sy++) {
+                    final int p = srcPixels[sy * srcStride + x];
+                    a += p >>> 24;
+                    r += (p >> 16) & 0xFF;
+                    g += (p >> 8) & 0xFF;
+                    b += p & 0xFF;
+                }
+                // rows past the bottom of the tile count as transparent
+                dstPixels[y * dstStride + x] = (a >> level) << 24 | (r >> level) << 16 | (g >> level) << 8 | (b >> level);
+            }
+        }
+    }
 
     /**
-     * Ensures that the backing image is as large or larger than the given
-     * dimensions. If it is not, the image is re-created and the text outline is
-     * re-rendered.
+     * Returns an indexed copy of the given tile if compact storage is on and
+     * the tile uses few enough colors, or the tile itself otherwise.
+     */
+    private OutlineTile compact(OutlineTile tile) {
+        if (!compactStorage) return tile;
+
+        final BufferedImage fg = IndexedImages.compact(tile.fg);
+        final BufferedImage bg = fg == null ? null : IndexedImages.compact(tile.bg);
+        if (bg == null) return tile;
+
+        final OutlineTile compacted = new OutlineTile(tile.index, tile.level, fg, bg);
+        compacted.setRenderedLike(tile);
+        return compacted;
+    }
+
+    /**
+     * Puts images which are not painted anywhere back into the pool.
+     */
+    private void recycle(BufferedImage[] images) {
+        synchronized (tiles) {
+            if (!disposed && imagePool.size() < 2) imagePool.add(images);
+        }
+    }
+
+    /**
+     * Returns images of the given width for a tile, reusing the images of a
+     * dropped tile if possible. The images are always backed by an int array,
+     * so renderers may write pixels directly.
+     */
+    private BufferedImage[] obtainImages(int width) {
+        synchronized (tiles) {
+            while (!imagePool.isEmpty()) {
+                final BufferedImage[] images = imagePool.remove(imagePool.size() - 1);
+                if (images[0].getWidth() == width) return images;
+            }
+        }
+        return new BufferedImage[] {
+                new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE),
+                new BufferedImage(width, OutlineTile.HEIGHT, BufferedImage.TYPE_INT_ARGB_PRE) };
+    }
+
+    /**
+     * Returns the images of a tile which was replaced or dropped to the pool.
+     * This happens on the event dispatch thread, once the tile can no longer
+     * be in the middle of being painted.
+     */
+    private void releaseLater(final OutlineTile tile) {
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            public void run() {
+                // compacted and downsampled images can't be rendered into
+                if (tile.level == 0 && tile.fg.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+                    recycle(new BufferedImage[] { tile.fg, tile.bg });
+                }
+            }
+        }, ModalityState.any());
+    }
+
+    /**
+     * Tells the listener a tile was updated.
+     */
+    private void publish() {
+        ApplicationManager.getApplication().invokeLater(new Runnable() {
+            public void run() {
+                if (!disposed) listener.shouldRepaint(CodeOutlineImage.this);
+            }
+        }, ModalityState.any());
+    }
+
+    /**
+     * Returns whether the render in progress should stop, because its result
+     * would be out of date or because a write action is waiting for it to
+     * release the read lock. Renderers should check this regularly.
+     *
+     * @return whether rendering should stop
+     */
+    protected boolean isRenderCancelled() {
+        if (disposed || renderGeneration != generation) return true;
+
+        final Application application = ApplicationManager.getApplication();
+        return application instanceof ApplicationEx && ((ApplicationEx) application).isWriteActionPending();
+    }
+
+    /**
+     * Returns whether the tiles around the visible part of the outline reflect
+     * the current document text, fold state and color scheme.
      *
+     * @return whether the visible image is up to date
+     */
+    public boolean isUpToDate() {
+        final int width = visibleImgWidth;
+        final int lastTile = Math.max(0, visibleImgHeight - 1) / OutlineTile.PITCH;
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        final int level = mipLevel;
+        synchronized (tiles) {
+            if (level > 0) {
+                for (int i = 0; i <= lastTile; i++) {
+                    final OutlineTile tile = mipTiles.get(i);
+                    if (tile == null || tile.level != level || !tile.isUpToDate(width, foldVersion, scheme)) return false;
+                }
+                return true;
+            }
+            for (Rectangle window : windows.values()) {
+                for (int i = getFirstVisibleTile(window), last = Math.min(getLastVisibleTile(window), lastTile); i <= last; i++) {
+                    final OutlineTile tile = tiles.get(i);
+                    if (tile == null || !tile.isUpToDate(width, foldVersion, scheme)) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts the tiles cached for the current state of the document in place of
+     * tiles which were not rendered yet, unless the document changed in the
+     * meantime.
+     */
+    private void restoreFromCache() {
+        final int width = visibleImgWidth;
+        final int startGeneration = generation;
+        final String key = ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+            public String compute() {
+                return getCacheKey(width);
+            }
+        });
+        if (key == null) return;
+        final Map<Integer, BufferedImage[]> cached = OutlineCache.getInstance().load(key);
+        CodeOutlineMetrics.getInstance().diskCacheLookedUp(cached != null);
+        if (cached == null) return;
+
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        final List<OutlineTile> restored = new ArrayList<OutlineTile>();
+        for (Map.Entry<Integer, BufferedImage[]> entry : cached.entrySet()) {
+            final OutlineTile tile = new OutlineTile(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            tile.setRenderedWith(foldVersion, scheme);
+            restored.add(compact(tile));
+        }
+        synchronized (tiles) {
+            if (disposed || generation != startGeneration) return;
+            for (OutlineTile tile : restored) {
+                if (!tiles.containsKey(tile.index)) tiles.put(tile.index, tile);
+            }
+        }
+        restoredKey = key;
+        publish();
+    }
+
+    /**
+     * Saves the up to date full size tiles to the outline cache on a pooled
+     * thread, if the document is saved to a file and the tiles did not come
+     * from the cache entry for its current state.
+     */
+    private void saveToCache() {
+        if (disposed || graphicsConfiguration == null) return;
+
+        final int width = visibleImgWidth;
+        final String key = ApplicationManager.getApplication().runReadAction(new Computable<String>() {
+            public String compute() {
+                return getCacheKey(width);
+            }
+        });
+        // the entry the tiles came from is still good
+        if (key == null || key.equals(restoredKey)) return;
+
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        final Map<Integer, BufferedImage[]> saved = new TreeMap<Integer, BufferedImage[]>();
+        synchronized (tiles) {
+            for (OutlineTile tile : tiles.values()) {
+                if (tile.isUpToDate(width, foldVersion, scheme)) {
+                    saved.put(tile.index, new BufferedImage[] { tile.fg, tile.bg });
+                }
+            }
+        }
+        if (saved.isEmpty()) return;
+
+        // a stored tile is never drawn into again, so its images are written
+        // as they are, after the image dropped them
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            public void run() {
+                OutlineCache.getInstance().store(key, saved);
+            }
+        });
+    }
+
+    /**
+     * Returns the key the tiles of this image are cached under: the file with
+     * its time stamp and length, the color scheme, the render mode, the width
+     * and the fold layout. Returns <code>null</code> if the document has no
+     * file or differs from it. Must be called inside a read action.
+     *
+     * @param width the width of the tiles
+     * @return the cache key, or <code>null</code> if the tiles can't be cached
+     */
+    private String getCacheKey(int width) {
+        final FileDocumentManager documentManager = FileDocumentManager.getInstance();
+        final VirtualFile file = documentManager.getFile(document);
+        if (file == null || documentManager.isDocumentUnsaved(document)) return null;
+
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        return file.getUrl() + '\n' + file.getTimeStamp() + ' ' + file.getLength()
+                + '\n' + scheme.getName() + ' ' + scheme.getDefaultForeground().getRGB()
+                + ' ' + scheme.getDefaultBackground().getRGB()
+                + '\n' + renderMode + ' ' + width + ' ' + getFoldLayoutHash();
+    }
+
+    /**
+     * Returns a hash of the way the outlined editor folds the document. The
+     * default implementation ignores folding.
+     *
+     * @return a hash of the fold layout
+     */
+    protected int getFoldLayoutHash() {
+        return 0;
+    }
+
+    /**
+     * Returns whether any collapsed fold region intersects the given range.
+     * Collapsed regions change the row layout of the outline, so edits
+     * touching them are rendered from scratch.
+     *
+     * @param startOffset the start of the range
+     * @param endOffset the end of the range
+     * @return whether a collapsed fold region intersects the given range
+     */
+    private boolean isCollapsed(int startOffset, int endOffset) {
+        for (FoldRegion region : editor.getFoldingModel().getAllFoldRegions()) {
+            if (region.getStartOffset() > endOffset) break;
+            if (!region.isExpanded() && region.getEndOffset() >= startOffset) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the row of the outline the given logical line is drawn at. The
+     * default implementation ignores folding.
+     *
+     * @param line a logical line
+     * @return the outline row of the given line
+     */
+    protected int getVisualRow(int line) {
+        return line;
+    }
+
+    /**
+     * Returns the first logical line drawn at the given outline row. The
+     * default implementation ignores folding.
+     *
+     * @param row an outline row
+     * @return the first logical line of the given row
+     */
+    protected int getLogicalLine(int row) {
+        return row;
+    }
+
+    /**
+     * Returns the topmost pixel row of the given outline row.
+     *
+     * @param row an outline row
+     * @return the y coordinate of the top of the row
+     */
+    protected static int getLineTop(int row) {
+        return row * OutlineRenderer.LINE_HEIGHT + 1;
+    }
+
+    /**
+     * Moves all pixel rows starting at <code>from</code> by <code>delta</code>
+     * rows. Rows moved past the bottom of the image are dropped.
+     *
+     * @param img the image to modify
+     * @param from the first row to move
+     * @param delta the number of rows to move by, negative to move up
+     */
+    private static void shiftRows(BufferedImage img, int from, int delta) {
+        if (delta == 0) return;
+
+        final WritableRaster raster = img.getRaster();
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        Object row = null;
+        if (delta > 0) {
+            for (int y = height - 1 - delta; y >= from; y--) {
+                row = raster.getDataElements(0, y, width, 1, row);
+                raster.setDataElements(0, y + delta, width, 1, row);
+            }
+        } else {
+            for (int y = Math.max(from, -delta); y < height; y++) {
+                row = raster.getDataElements(0, y, width, 1, row);
+                raster.setDataElements(0, y + delta, width, 1, row);
+            }
+        }
+    }
+
+    /**
+     * Makes the given pixel rows of the image transparent.
+     *
+     * @param img the image to modify
+     * @param from the first row to clear
+     * @param to the row after the last row to clear
+     */
+    private static void clearRows(BufferedImage img, int from, int to) {
+        from = Math.max(0, from);
+        to = Math.min(img.getHeight(), to);
+        if (to <= from) return;
+
+        final Graphics2D g = img.createGraphics();
+        try {
+            g.setBackground(TRANSPARENT);
+            g.clearRect(0, from, img.getWidth(), to - from);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    /**
+     * Returns the text to render, with its colors and folds. Called inside a
+     * read action; the default implementation returns <code>null</code>, so
+     * nothing is rendered.
+     *
+     * @return the source to render, or <code>null</code>
+     */
+    protected OutlineSource getSource() {
+        return null;
+    }
+
+    /**
+     * The work of bringing one full size tile up to date, as worked out by
+     * {@link #prepareTile}.
+     */
+    private static final class TileRender {
+        final int index;
+        final int width;
+        final EditorColorsScheme scheme;
+        /** The current tile, if there is one. */
+        OutlineTile base;
+        /** The number of times rows of the current tile were marked when it was read. */
+        int dirtyCount;
+        /** Whether the current tile is up to date, so there is nothing to do. */
+        boolean upToDate = false;
+        /** Whether to render the whole tile, rather than copy the current one. */
+        boolean full;
+        /** The row moves to apply to the copy of the current tile. */
+        List<int[]> shifts;
+        /**
+         * The rows to render, as {first row, last row, start offset, end
+         * offset} ranges, the offsets those of the text drawn on them.
+         */
+        final List<int[]> rows = new ArrayList<int[]>();
+        /** The text of each range of rows, if captured for a render worker. */
+        OutlineSource[] snapshots;
+        /** Whether to pin the new tile. */
+        boolean pin;
+
+        TileRender(int index, int width, EditorColorsScheme scheme) {
+            this.index = index;
+            this.width = width;
+            this.scheme = scheme;
+        }
+    }
+
+
+    /**
+     * Ensures that the tiles around the part of the outline the given viewer
+     * shows are up to date. If they are not, a render is scheduled in the
+     * background and the current tiles stay on screen until it finishes, so
+     * this is cheap to call on every paint. The tiles are as wide as the
+     * widest viewer.
+     *
+     * @param viewer the object showing the outline, usually a panel
      * @param gc a graphics configuration object
-     * @param width the minimum width of the image
-     * @param height the minimum height of the image
+     * @param width the width of the outline
+     * @param height the height of the whole outline
+     * @param top the y coordinate of the top of the visible part of the outline
+     * @param visible the height of the visible part of the outline
+     * @param focus the y coordinate the viewer is centred on, such as the
+     *        middle of its editor's viewport, which is rendered first
      */
-    public synchronized void repaintCode(GraphicsConfiguration gc, int width, int height) {
+    public void repaintCode(Object viewer, GraphicsConfiguration gc, int width, int height, int top, int visible,
+            int focus) {
         if (gc == null) return;
 
-        visibleImgWidth = width;
+        graphicsConfiguration = gc;
+        synchronized (tiles) {
+            windows.put(viewer, new Rectangle(0, top, width, visible));
+            focuses.put(viewer, focus);
+            updateVisibleWidth();
+        }
         visibleImgHeight = height;
 
-        if (fgImg == null || bgImg == null || fgImg.getWidth() < width || fgImg.getHeight() < height) {
-            // clear out the old image data
-            if (fgImg != null) {
-                fgImg.flush();
-                fgImg = null;
-            }
-            if (bgImg != null) {
-                bgImg.flush();
-                bgImg = null;
-            }
+        if (!renderScheduled && !isUpToDate()) scheduleRender(0);
+    }
 
-            fgImg = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
-            bgImg = gc.createCompatibleImage(width, height, Transparency.TRANSLUCENT);
+    /**
+     * Forgets the part of the outline the given viewer showed, once it no
+     * longer shows this image.
+     *
+     * @param viewer an object passed to {@link #repaintCode}
+     */
+    public void removeViewer(Object viewer) {
+        synchronized (tiles) {
+            windows.remove(viewer);
+            focuses.remove(viewer);
+            updateVisibleWidth();
         }
-        refreshImage();
+    }
 
+    private void updateVisibleWidth() {
+        int width = 0;
+        for (Rectangle window : windows.values()) {
+            width = Math.max(width, window.width);
+        }
+        visibleImgWidth = width;
     }
 
-    public BufferedImage getFgImg() {
-        return fgImg;
+    /**
+     * Draws the text backgrounds of the tiles on screen. Must be called from
+     * the event dispatch thread.
+     *
+     * @param g the graphics to draw to
+     * @param y the y coordinate of the top of the outline
+     * @param height the height of the area to draw
+     */
+    public void drawBackground(Graphics g, int y, int height) {
+        drawLayer(g, false, y, height);
     }
-    public BufferedImage getBgImg() {
-        return bgImg;
+
+    /**
+     * Draws the text of the tiles on screen. Must be called from the event
+     * dispatch thread.
+     *
+     * @param g the graphics to draw to
+     * @param y the y coordinate of the top of the outline
+     * @param height the height of the area to draw
+     */
+    public void drawForeground(Graphics g, int y, int height) {
+        drawLayer(g, true, y, height);
+    }
+
+    private void drawLayer(Graphics g, boolean foreground, int y, int height) {
+        // tiles past the end of a shrunk document may still be cached
+        final int bottom = Math.min(-y + height, visibleImgHeight);
+        final Shape clip = g.getClip();
+        g.clipRect(0, 0, visibleImgWidth, bottom + y);
+        try {
+            synchronized (tiles) {
+                for (int i = Math.max(0, -y) / OutlineTile.PITCH; i * OutlineTile.PITCH < bottom; i++) {
+                    final OutlineTile mip = mipLevel > 0 ? mipTiles.get(i) : null;
+                    final OutlineTile tile = mip != null ? mip : tiles.get(i);
+                    if (tile == null) continue;
+
+                    final BufferedImage img = foreground ? tile.fg : tile.bg;
+                    final int top = y + tile.getTop();
+                    g.drawImage(img, 0, top, img.getWidth(), top + (img.getHeight() << tile.level),
+                            0, 0, img.getWidth(), img.getHeight(), null);
+                }
+            }
+        } finally {
+            g.setClip(clip);
+        }
     }
 }
@@ -0,0 +1,201 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts what the code outline spends its time on, for JConsole or a JMX
+ * exporter to read. Everything is counted without locking, from whichever
+ * thread renders or paints, so counting costs next to nothing; reading walks
+ * the live images, taking each one's lock only briefly.
+ */
+public class CodeOutlineMetrics implements CodeOutlineMetricsMXBean {
+    private static final Logger logger = Logger.getInstance(CodeOutlineMetrics.class.getName());
+
+    public static final String OBJECT_NAME = "net.kano.codeoutline:type=CodeOutlineMetrics";
+
+    private static final CodeOutlineMetrics instance = new CodeOutlineMetrics();
+
+    private final DurationHistogram tileRenders = new DurationHistogram();
+    private final DurationHistogram renderPasses = new DurationHistogram();
+    private final DurationHistogram paints = new DurationHistogram();
+    private final AtomicLongArray repaintRequests = new AtomicLongArray(RepaintScheduler.Reason.values().length);
+
+    private final AtomicLong tileHits = new AtomicLong();
+    private final AtomicLong tileMisses = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong diskMisses = new AtomicLong();
+    private final AtomicLong lineHits = new AtomicLong();
+    private final AtomicLong lineMisses = new AtomicLong();
+
+    /** The live images. */
+    private final Map<CodeOutlineImage, Boolean> images = new ConcurrentHashMap<CodeOutlineImage, Boolean>();
+    /** The live panels, with the image each last painted. */
+    private final Map<CodeOutlinePanel, PanelEntry> panels = new ConcurrentHashMap<CodeOutlinePanel, PanelEntry>();
+
+    private CodeOutlineMetrics() { }
+
+    public static CodeOutlineMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, unless they are
+     * already.
+     */
+    public void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warn("Could not register code outline metrics", e);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    public void unregister() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            logger.warn("Could not unregister code outline metrics", e);
+        }
+    }
+
+    void tileRendered(long nanos) {
+        tileRenders.record(nanos);
+    }
+
+    void renderPassFinished(long nanos) {
+        renderPasses.record(nanos);
+    }
+
+    void panelPainted(CodeOutlinePanel panel, CodeOutlineImage image, long nanos) {
+        paints.record(nanos);
+        final PanelEntry entry = panels.get(panel);
+        if (entry != null) entry.image = image;
+    }
+
+    void repaintRequested(RepaintScheduler.Reason reason) {
+        repaintRequests.incrementAndGet(reason.ordinal());
+    }
+
+    void tileLookedUp(boolean upToDate) {
+        (upToDate ? tileHits : tileMisses).incrementAndGet();
+    }
+
+    void diskCacheLookedUp(boolean found) {
+        (found ? diskHits : diskMisses).incrementAndGet();
+    }
+
+    void linesLookedUp(int cached, int captured) {
+        if (cached > 0) lineHits.addAndGet(cached);
+        if (captured > 0) lineMisses.addAndGet(captured);
+    }
+
+    void imageCreated(CodeOutlineImage image) {
+        images.put(image, Boolean.TRUE);
+    }
+
+    void imageDisposed(CodeOutlineImage image) {
+        images.remove(image);
+    }
+
+    void panelCreated(CodeOutlinePanel panel, String fileName) {
+        panels.put(panel, new PanelEntry(fileName + "@" + Integer.toHexString(System.identityHashCode(panel))));
+    }
+
+    void panelDisposed(CodeOutlinePanel panel) {
+        panels.remove(panel);
+    }
+
+    public DurationStats getTileRenderTime() {
+        return tileRenders.getStats();
+    }
+
+    public DurationStats getRenderPassTime() {
+        return renderPasses.getStats();
+    }
+
+    public DurationStats getPaintTime() {
+        return paints.getStats();
+    }
+
+    public Map<String, Long> getRepaintRequests() {
+        final Map<String, Long> requests = new TreeMap<String, Long>();
+        for (RepaintScheduler.Reason reason : RepaintScheduler.Reason.values()) {
+            requests.put(reason.name(), repaintRequests.get(reason.ordinal()));
+        }
+        return requests;
+    }
+
+    public long getImageBytes() {
+        long bytes = 0;
+        for (CodeOutlineImage image : images.keySet()) {
+            bytes += image.getImageBytes();
+        }
+        return bytes;
+    }
+
+    public Map<String, Long> getImageBytesByPanel() {
+        final Map<String, Long> bytes = new TreeMap<String, Long>();
+        for (PanelEntry entry : panels.values()) {
+            final CodeOutlineImage image = entry.image;
+            bytes.put(entry.name, image == null ? 0 : image.getImageBytes());
+        }
+        return bytes;
+    }
+
+    public int getLivePanelCount() {
+        return panels.size();
+    }
+
+    public CacheStats getTileCache() {
+        return new CacheStats(tileHits.get(), tileMisses.get());
+    }
+
+    public CacheStats getDiskCache() {
+        return new CacheStats(diskHits.get(), diskMisses.get());
+    }
+
+    public CacheStats getLineRunCache() {
+        return new CacheStats(lineHits.get(), lineMisses.get());
+    }
+
+    public void reset() {
+        tileRenders.reset();
+        renderPasses.reset();
+        paints.reset();
+        for (int i = 0; i < repaintRequests.length(); i++) {
+            repaintRequests.set(i, 0);
+        }
+        for (AtomicLong counter : new AtomicLong[] { tileHits, tileMisses, diskHits, diskMisses, lineHits, lineMisses }) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * A live panel, and the image it last painted.
+     */
+    private static final class PanelEntry {
+        private final String name;
+        private volatile CodeOutlineImage image = null;
+
+        private PanelEntry(String name) {
+            this.name = name;
+        }
+    }
+}
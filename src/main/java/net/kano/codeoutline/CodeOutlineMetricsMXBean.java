@@ -0,0 +1,91 @@
+package net.kano.codeoutline;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link CodeOutlineMetrics}, registered as
+ * <code>net.kano.codeoutline:type=CodeOutlineMetrics</code> with the
+ * platform MBean server.
+ */
+public interface CodeOutlineMetricsMXBean {
+    /**
+     * Returns how long rendering the changed rows of a tile took, including
+     * copying the unchanged rows and compacting the tile.
+     *
+     * @return tile render durations
+     */
+    DurationStats getTileRenderTime();
+
+    /**
+     * Returns how long each pass of the render thread over the visible tiles
+     * took, including waiting for the read lock.
+     *
+     * @return render pass durations
+     */
+    DurationStats getRenderPassTime();
+
+    /**
+     * Returns how long painting a code outline panel took.
+     *
+     * @return paint durations
+     */
+    DurationStats getPaintTime();
+
+    /**
+     * Returns the number of repaints requested for each reason, such as caret
+     * moves or scrolling, by all panels.
+     *
+     * @return repaint requests by reason
+     */
+    Map<String, Long> getRepaintRequests();
+
+    /**
+     * Returns the number of bytes of pixel data held by all outline images.
+     *
+     * @return the size of all outline images in bytes
+     */
+    long getImageBytes();
+
+    /**
+     * Returns the number of bytes of pixel data held by the image each panel
+     * last painted, by file name and panel. Panels showing the same rendering
+     * share its bytes.
+     *
+     * @return image bytes by panel
+     */
+    Map<String, Long> getImageBytesByPanel();
+
+    /**
+     * Returns the number of panels which were created and not disposed yet.
+     *
+     * @return the number of live panels
+     */
+    int getLivePanelCount();
+
+    /**
+     * Returns how often a tile to render was already up to date.
+     *
+     * @return tile cache lookups
+     */
+    CacheStats getTileCache();
+
+    /**
+     * Returns how often the rendered tiles of a file were found in the cache
+     * on disk.
+     *
+     * @return disk cache lookups
+     */
+    CacheStats getDiskCache();
+
+    /**
+     * Returns how often a line to render had its highlighting cached.
+     *
+     * @return line run cache lookups
+     */
+    CacheStats getLineRunCache();
+
+    /**
+     * Resets all durations, repaint requests and cache lookups to zero.
+     */
+    void reset();
+}
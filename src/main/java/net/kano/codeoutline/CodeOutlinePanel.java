@@ -36,23 +36,18 @@
 
 package net.kano.codeoutline;
 
-import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.editor.*;
 import com.intellij.openapi.editor.colors.EditorColors;
 import com.intellij.openapi.editor.event.*;
 import com.intellij.openapi.editor.ex.EditorEx;
 import com.intellij.openapi.editor.ex.FoldingListener;
-import com.intellij.openapi.editor.ex.MarkupModelEx;
-import com.intellij.openapi.editor.ex.RangeHighlighterEx;
-import com.intellij.openapi.editor.impl.DocumentMarkupModel;
-import com.intellij.openapi.editor.impl.event.MarkupModelListener;
-import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
 import com.intellij.openapi.editor.markup.TextAttributes;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.ui.JBColor;
-import com.intellij.util.ui.UIUtil;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
@@ -60,8 +55,8 @@ import javax.swing.event.PopupMenuEvent;
 import javax.swing.event.PopupMenuListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
-import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.*;
@@ -71,7 +66,12 @@ import java.util.List;
  * A code outline panel for a single text editor. The code outline panel manages
  * everything about the code outline but the text outline itself. This includes
  * painting the selection and visible region, scrolling, configuration UI, and
- * highlighting the current line.
+ * highlighting the current line. The text outline and the error stripes come
+ * from the {@link DocumentOutline} shared by all panels of the document.
+ * <p>
+ * A panel is created for every open editor, including the ones in background
+ * tabs, but it is only a placeholder until it is first shown: only then does
+ * it take its reference to the shared outline and listen to the editor.
  */
 
 public class CodeOutlinePanel extends JPanel implements Disposable {
@@ -86,19 +86,41 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
     private final CodeOutlinePlugin plugin; // The code outline plugin instance which instantiated this panel.
     private final Project project; // The project for which this code outline panel is shown.
     private final EditorEx editor; // The editor whose code is outlined in this panel.
-    private final MarkupModelEx markupModel;
     private final CodeOutlinePrefs prefs; // The set of code outline preferences to obey.
-    private final Set<RangeHighlighterEx> highlighters;
     private RangeHighlighter highlighter; // The range highlighter used to highlight the currently hovered line.
-    private final CodeOutlineImage image; // The text outline image used in this panel.
+    private int hoveredLine = -1; // The currently highlighted line, or -1 if no line is highlighted.
+    private final javax.swing.Timer hoverTimer = new javax.swing.Timer(RepaintScheduler.MIN_INTERVAL, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+            updateHighlightedLine();
+        }
+    }); // Limits hovered line updates to one per frame.
+    private DocumentOutline outline = null; // The outline of the document, shared with the other panels showing it, once this panel was shown.
+    private boolean disposed = false; // Whether this panel was disposed.
+    private int listenerCount = 0; // The number of listeners attached to the editor and the preferences and not removed yet.
     private JPopupMenu contextMenu = new JPopupMenu(); // The context menu that appears when right-clicking the code outline.
     private Point lastMousePoint = null; // The last position of the mouse on the code outline panel, or null if the mouse is not hovering over the panel.
     private Rectangle previousViewport = null; // The old viewport before the preview was invoked
+    private final RepaintScheduler repaints = new RepaintScheduler(this); // Coalesces the repaints of this panel.
+    private final PaintTimer paintTimer = new PaintTimer(); // Times the phases of painting a frame.
+    private int outlineHeight = 0; // The height of the outline, as of the last layout.
+    private int outlineOffset = 0; // The y coordinate of the top of the outline in this panel, as of the last layout.
+    private double outlineScale = 1; // The vertical scale the outline is drawn at, below 1 if it is fitted to the panel.
+    private Rectangle viewportRect = null; // The editor viewport in this panel, as of the last layout.
+    private int[] paintedCaretRows = new int[0]; // The outline rows of the carets when last painted.
     private Point beforePreview;
     private JCheckBoxMenuItem animatedScrollingMenuItem = new JCheckBoxMenuItem(new AnimateOptionAction());
     private JCheckBoxMenuItem highlightCurrentLineMenuItem = new JCheckBoxMenuItem(new HighlightOptionAction());
+    private JCheckBoxMenuItem highlightLineInOutlineMenuItem = new JCheckBoxMenuItem(new HighlightInOutlineOptionAction());
     private JCheckBoxMenuItem extendErrorHighlightsMenuItem = new JCheckBoxMenuItem(new ExtendErrorHighlightsOptionAction());
     private JCheckBoxMenuItem lightenCodeOutsideViewportMenuItem = new JCheckBoxMenuItem(new LightenCodeOutsideViewportOptionAction());
+    private JCheckBoxMenuItem fitToHeightMenuItem = new JCheckBoxMenuItem(new FitToHeightOptionAction());
+    private JCheckBoxMenuItem compactImagesMenuItem = new JCheckBoxMenuItem(new CompactImagesOptionAction());
+    private JMenuItem imageBytesMenuItem = new JMenuItem(); // Shows the memory taken by the outline images.
+    private JMenuItem registryMenuItem = new JMenuItem(); // Shows the resources taken by all code outlines.
+    private JMenuItem slowFramesMenuItem = new JMenuItem(new SlowFramesAction()); // Shows the frames which were slow to paint.
+    private JMenu renderModeMenu = new JMenu("Rendering");
+    private Map<OutlineRenderMode, JRadioButtonMenuItem> renderModeMenuItems
+            = new EnumMap<OutlineRenderMode, JRadioButtonMenuItem>(OutlineRenderMode.class);
 
 
     /**
@@ -106,7 +128,21 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      */
     private VisibleAreaListener scrollListener = new VisibleAreaListener() {
         public void visibleAreaChanged(VisibleAreaEvent e) {
-            repaint();
+            int oldOffset = outlineOffset;
+            double oldScale = outlineScale;
+            Rectangle oldViewport = viewportRect;
+            updateLayout();
+            if (oldViewport == null || oldOffset != outlineOffset || oldScale != outlineScale) {
+                // the whole outline moved
+                repaints.repaintAll(RepaintScheduler.Reason.VIEWPORT);
+            } else {
+                Rectangle dirty = oldViewport.union(viewportRect);
+                if (previousViewport != null) dirty.add(previousViewport);
+                // the viewport outline is drawn one pixel past its size
+                dirty.width += 2;
+                dirty.height += 2;
+                repaints.repaint(RepaintScheduler.Reason.VIEWPORT, toPanelRect(dirty));
+            }
         }
     };
     /**
@@ -114,7 +150,10 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      */
     private SelectionListener selectListener = new SelectionListener() {
         public void selectionChanged(SelectionEvent e) {
-            repaint();
+            if (e.getOldRange() != null)
+                repaintLines(RepaintScheduler.Reason.SELECTION, e.getOldRange().getStartOffset(), e.getOldRange().getEndOffset());
+            if (e.getNewRange() != null)
+                repaintLines(RepaintScheduler.Reason.SELECTION, e.getNewRange().getStartOffset(), e.getNewRange().getEndOffset());
         }
     };
     /**
@@ -122,15 +161,15 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      */
     private CaretListener caretListener = new CaretListener() {
         public void caretPositionChanged(CaretEvent caretEvent) {
-            repaint();
+            repaintCarets();
         }
 
         public void caretAdded(CaretEvent caretEvent) {
-            repaint();
+            repaintCarets();
         }
 
         public void caretRemoved(CaretEvent caretEvent) {
-            repaint();
+            repaintCarets();
         }
     };
 
@@ -145,8 +184,9 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
 
         @Override
         public void onFoldProcessingEnd() {
-            image.refreshImage();
-            repaint();
+            FoldIndex.invalidate(editor);
+            outline.foldsChanged(view);
+            repaints.repaintAll(RepaintScheduler.Reason.FOLDS);
         }
     };
 
@@ -222,6 +262,7 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
 
             synchronized (CodeOutlinePanel.this) {
                 lastMousePoint = null;
+                hoverTimer.stop();
                 clearHighlightedLine();
             }
         }
@@ -269,27 +310,47 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         }
     };
     /**
-     * A listener for determining when the panel should be repainted to reflect
-     * changes in the text outline.
+     * This panel as a view of the shared outline, which tells it when it
+     * should be repainted to reflect changes in the text outline or markup.
      */
-    private CodeOutlineListener repaintListener = new CodeOutlineListener() {
-        public void shouldRepaint(CodeOutlineImage image) {
-            repaint();
+    private DocumentOutline.View view = new DocumentOutline.View() {
+        public EditorEx getEditor() {
+            return editor;
         }
 
-        public void handleException(CodeOutlineImage image, Exception e) {
-            plugin.handleException(e);
+        public void outlineChanged() {
+            repaints.repaintAll(RepaintScheduler.Reason.OUTLINE);
+        }
+
+        public void markupChanged(int startOffset, int endOffset) {
+            repaintLines(RepaintScheduler.Reason.MARKUP, startOffset, endOffset);
+        }
+    };
+
+    /**
+     * A listener activating this panel the first time it is shown.
+     */
+    private HierarchyListener showingListener = new HierarchyListener() {
+        public void hierarchyChanged(HierarchyEvent e) {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0 && isShowing()) {
+                activate();
+            }
         }
     };
 
     /**
-     * A property change listener for detecting changes in the currently hovered
-     * line highlighting option.
+     * A property change listener for detecting changes in the code outline
+     * options. The options changing the text outline image itself are handled
+     * by the shared outline; here it is only composited again.
      */
     private PropertyChangeListener prefListener
             = new PropertyChangeListener() {
         public void propertyChange(PropertyChangeEvent evt) {
-            refresh();
+            if ("highlightLine".equals(evt.getPropertyName())
+                    || "highlightLineInOutline".equals(evt.getPropertyName())) {
+                updateHighlightedLine();
+            }
+            repaints.repaintAll(RepaintScheduler.Reason.OPTIONS);
         }
     };
 
@@ -336,10 +397,26 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
 
         contextMenu.add(animatedScrollingMenuItem);
         contextMenu.add(highlightCurrentLineMenuItem);
+        contextMenu.add(highlightLineInOutlineMenuItem);
         contextMenu.add(extendErrorHighlightsMenuItem);
         contextMenu.add(lightenCodeOutsideViewportMenuItem);
+        contextMenu.add(fitToHeightMenuItem);
+        contextMenu.add(compactImagesMenuItem);
+        ButtonGroup renderModeGroup = new ButtonGroup();
+        for (OutlineRenderMode mode : OutlineRenderMode.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(new RenderModeAction(mode));
+            renderModeGroup.add(item);
+            renderModeMenu.add(item);
+            renderModeMenuItems.put(mode, item);
+        }
+        contextMenu.add(renderModeMenu);
         contextMenu.addSeparator();
         contextMenu.add(new RefreshAction());
+        imageBytesMenuItem.setEnabled(false);
+        contextMenu.add(imageBytesMenuItem);
+        registryMenuItem.setEnabled(false);
+        contextMenu.add(registryMenuItem);
+        contextMenu.add(slowFramesMenuItem);
         // the context menu's checkboxes are only updated from the code outline
         // preferences object when they are needed (before the menu is shown)
         contextMenu.addPopupMenuListener(new PopupMenuListener() {
@@ -352,8 +429,18 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
             public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
                 animatedScrollingMenuItem.setSelected(prefs.isAnimated());
                 highlightCurrentLineMenuItem.setSelected(prefs.isHighlightLine());
+                highlightLineInOutlineMenuItem.setSelected(prefs.isHighlightLineInOutline());
                 extendErrorHighlightsMenuItem.setSelected(prefs.isExtendErrorHighlights());
                 lightenCodeOutsideViewportMenuItem.setSelected(prefs.isLightenCodeOutsideViewport());
+                fitToHeightMenuItem.setSelected(prefs.isFitToHeight());
+                compactImagesMenuItem.setSelected(prefs.isCompactImages());
+                imageBytesMenuItem.setText("Image Memory: " + (outline.getImageBytes() + 1023) / 1024 + " KB");
+                final OutlineRegistry registry = OutlineRegistry.getInstance();
+                registryMenuItem.setText("All Outlines: " + registry.getPanelCount() + " panels, "
+                        + registry.getListenerCount() + " listeners, "
+                        + (registry.getImageBytes() + 1023) / 1024 + " KB");
+                renderModeMenuItems.get(prefs.getRenderMode()).setSelected(true);
+                slowFramesMenuItem.setText("Slow Frames (" + SlowFrameLog.getInstance().getFrames().size() + ")...");
             }
         });
 
@@ -373,45 +460,10 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         this.plugin = plugin;
         this.project = editor.getProject();
         this.editor = editor;
-        this.image = new CodeOutlineImageEx(editor, repaintListener);
         this.prefs = plugin.getPrefs();
-        this.markupModel = (MarkupModelEx) DocumentMarkupModel.forDocument(editor.getDocument(), editor.getProject(), true);
-
-        highlighters = //new HashSet<RangeHighlighterEx>();
-                new TreeSet<RangeHighlighterEx>(new Comparator<RangeHighlighterEx>() {
-
-                    public int compare(RangeHighlighterEx o1, RangeHighlighterEx o2) {
-                        return o1.getAffectedAreaStartOffset() - o2.getAffectedAreaStartOffset();
-                    }
-                });
-
-
-        markupModel.addMarkupModelListener(this, new MarkupModelListener() {
-            public void afterAdded(@NotNull RangeHighlighterEx rangeHighlighterEx) {
-                highlighters.add(rangeHighlighterEx);
-                repaint();
-            }
 
-            public void beforeRemoved(@NotNull RangeHighlighterEx rangeHighlighterEx) {
-                highlighters.remove(rangeHighlighterEx);
-                repaint();
-            }
-
-            @Override
-            public void attributesChanged(@NotNull RangeHighlighterEx rangeHighlighterEx, boolean b) {
-                repaint();
-            }
-
-        });
-        UIUtil.invokeLaterIfNeeded(new Runnable() {
-            public void run() {
-                for (RangeHighlighter rangeHighlighter : markupModel.getAllHighlighters()) {
-                    highlighters.add((RangeHighlighterEx) rangeHighlighter);
-                }
-            }
-        });
-
-        init();
+        hoverTimer.setRepeats(false);
+        addHierarchyListener(showingListener);
     }
 
     /**
@@ -427,27 +479,92 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
     }
 
     /**
-     * Initializes listeners.
+     * Takes a reference to the shared outline and initializes listeners, unless
+     * this was done already.
      */
-    private void init() {
+    private void activate() {
+        if (outline != null || disposed) return;
+
+        removeHierarchyListener(showingListener);
+        outline = DocumentOutline.acquire(plugin, view);
         prefs.addPropertyChangeListener(prefListener);
+        listenerCount++;
         editor.getScrollingModel().addVisibleAreaListener(scrollListener);
+        listenerCount++;
         editor.getSelectionModel().addSelectionListener(selectListener);
+        listenerCount++;
         editor.getCaretModel().addCaretListener(caretListener);
-        editor.getFoldingModel().addListener(foldingListener, this);
+        listenerCount++;
+        editor.getFoldingModel().addListener(foldingListener, countListener());
+    }
+
+    /**
+     * Counts a listener attached with the returned disposable as its parent.
+     * The disposable is disposed with this panel, removing the listener and
+     * uncounting it.
+     *
+     * @return the parent disposable for the listener
+     */
+    private Disposable countListener() {
+        listenerCount++;
+        final Disposable parent = new Disposable() {
+            public void dispose() {
+                listenerCount--;
+            }
+        };
+        Disposer.register(this, parent);
+        return parent;
     }
 
     /**
-     * Removes listeners and tells the text outline image to dispose of itself
-     * as well.
+     * Removes listeners and gives back this panel's reference to the shared
+     * outline, if this panel was ever shown. Panels are disposed through
+     * {@link OutlineRegistry#dispose}, so the Disposer removes the folding
+     * listener registered under this panel before this is called.
      */
     public void dispose() {
-        image.dispose();
+        if (disposed) return;
+
+        disposed = true;
+        OutlineRegistry.getInstance().panelDisposed(this);
+        removeHierarchyListener(showingListener);
+        repaints.dispose();
+        hoverTimer.stop();
+        if (outline == null) return;
+
+        clearHighlightedLine();
+        outline.release(view);
 
         prefs.removePropertyChangeListener(prefListener);
+        listenerCount--;
         editor.getScrollingModel().removeVisibleAreaListener(scrollListener);
+        listenerCount--;
         editor.getSelectionModel().removeSelectionListener(selectListener);
+        listenerCount--;
         editor.getCaretModel().removeCaretListener(caretListener);
+        listenerCount--;
+    }
+
+    /**
+     * Returns the number of listeners this panel has attached to its editor
+     * and the preferences and not removed yet: none until it was first shown,
+     * and none once it was disposed unless one was left behind.
+     *
+     * @return the number of attached listeners
+     */
+    public int getListenerCount() {
+        return listenerCount;
+    }
+
+    /**
+     * Returns the name of the file this panel outlines, or "?" if its document
+     * has no file.
+     *
+     * @return a name for this panel's file
+     */
+    String getFileName() {
+        final VirtualFile file = FileDocumentManager.getInstance().getFile(editor.getDocument());
+        return file == null ? "?" : file.getName();
     }
 
     /**
@@ -460,7 +577,7 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      * @param animate whether the scrolling should be animated
      */
     private void scrollTo(Point point, boolean animate) {
-        int x = Math.max(0, point.y /2);
+        int x = Math.max(0, toOutlineY(point.y) / 2);
         int y = Math.max(0, point.x /2);
         x = Util.getLinePlusFolds(editor, x);
         LogicalPosition pos = new LogicalPosition(x , y );
@@ -553,11 +670,12 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         lastMousePoint = point;
         if (!prefs.isHighlightLine()) return;
 
-        highlightCurrentLine();
+        // the highlight follows the mouse at most once per frame
+        if (!hoverTimer.isRunning()) hoverTimer.start();
     }
 
     private int getLineFromMousePointY(int mousePointY) {
-        return mousePointY / 2; // Two pixels of preview per line, plus one blank line of pixels between each line of text
+        return toOutlineY(mousePointY) / 2; // Two pixels of preview per line, plus one blank line of pixels between each line of text
     }
 
     /**
@@ -567,16 +685,52 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
     private void highlightCurrentLine() {
         if (lastMousePoint == null) return;
 
-        clearHighlightedLine();
-        MarkupModel mm = editor.getMarkupModel();
         int line = getLineFromMousePointY(lastMousePoint.y);
 
         line = Util.getLinePlusFolds(editor, line);
         if (line >= 0 && line < editor.getDocument().getLineCount()) {
-            highlighter = mm.addLineHighlighter(line, 100, CURRENTLINE_ATTRIBUTES);
+            setHighlightedLine(line);
+        } else {
+            setHighlightedLine(-1);
         }
     }
 
+    /**
+     * Highlights the given line, in the editor or only in the outline as the
+     * user has chosen. Nothing is done if the line is highlighted that way
+     * already.
+     *
+     * @param line the line to highlight, or -1 to highlight no line
+     */
+    private void setHighlightedLine(int line) {
+        boolean inEditor = line >= 0 && !prefs.isHighlightLineInOutline();
+        if (line == hoveredLine && inEditor == (highlighter != null)
+                && (highlighter == null || highlighter.isValid())) return;
+
+        if (hoveredLine >= 0) repaintHighlightedLine();
+        hoveredLine = line;
+        if (hoveredLine >= 0) repaintHighlightedLine();
+
+        if (highlighter != null) {
+            editor.getMarkupModel().removeHighlighter(highlighter);
+            highlighter = null;
+        }
+        if (inEditor) {
+            highlighter = editor.getMarkupModel().addLineHighlighter(line, 100, CURRENTLINE_ATTRIBUTES);
+        }
+    }
+
+    /**
+     * Schedules a repaint of the outline row of the highlighted line, if it is
+     * drawn in the outline.
+     */
+    private void repaintHighlightedLine() {
+        if (!prefs.isHighlightLineInOutline()) return;
+
+        int row = Util.getLineMinusFolds(editor, hoveredLine);
+        repaintOutlineStrip(RepaintScheduler.Reason.HOVER, row * 2 + 1, row * 2 + 3);
+    }
+
     /**
      * Highlights the line which should be highlighted according to the last
      * mouse position; clears the highlighted line if the user has this option
@@ -594,10 +748,7 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      * Erases the highlighting for the currently highlighted line.
      */
     private void clearHighlightedLine() {
-        if (highlighter != null) {
-            editor.getMarkupModel().removeHighlighter(highlighter);
-            highlighter = null;
-        }
+        setHighlightedLine(-1);
     }
 
     /**
@@ -628,84 +779,192 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
      * Repaints the entire code outline panel, reloading the editor text completely by recaching the file.
      */
     public void refresh() {
-        image.refreshImage();
-        repaint();
+        if (outline == null) return;
+
+        outline.refresh();
+        repaints.repaintAll(RepaintScheduler.Reason.OUTLINE);
     }
 
-    protected void paintComponent(Graphics g1) {
-        Dimension editorComponent = editor.getScrollPane().getViewport().getComponents()[0].getSize();
+    /**
+     * Schedules a repaint of the outline rows of the given text range.
+     *
+     * @param reason      what the repaint is for
+     * @param startOffset the start of the range
+     * @param endOffset   the end of the range
+     */
+    private void repaintLines(RepaintScheduler.Reason reason, int startOffset, int endOffset) {
+        Document document = editor.getDocument();
+        int length = document.getTextLength();
+        int first = Util.getLineMinusFolds(editor, document.getLineNumber(Math.max(0, Math.min(startOffset, length))));
+        int last = Util.getLineMinusFolds(editor, document.getLineNumber(Math.max(0, Math.min(endOffset, length))));
+        // the caret and the error stripes reach a pixel above and below the row
+        repaintOutlineStrip(reason, first * 2, last * 2 + 4);
+    }
 
-        Color eBG = editor.getColorsScheme().getDefaultBackground();
-        Color caretColor = editor.getColorsScheme().getColor(EditorColors.CARET_COLOR);
+    /**
+     * Schedules a repaint of the rows the carets were painted on, and of the
+     * rows they are on now.
+     */
+    private void repaintCarets() {
+        for (int row : paintedCaretRows) {
+            repaintOutlineStrip(RepaintScheduler.Reason.CARET, row * 2, row * 2 + 4);
+        }
+        for (Caret c : editor.getCaretModel().getAllCarets()) {
+            int row = Util.getLineMinusFolds(editor, c.getLogicalPosition().line);
+            repaintOutlineStrip(RepaintScheduler.Reason.CARET, row * 2, row * 2 + 4);
+        }
+    }
 
-        Graphics2D g = (Graphics2D) g1;
-        List<Caret> carets = editor.getCaretModel().getAllCarets();
+    /**
+     * Schedules a repaint of the full-width strip between the given y
+     * coordinates of the outline.
+     *
+     * @param reason what the repaint is for
+     * @param top    the top of the strip in the outline
+     * @param bottom the bottom of the strip in the outline, exclusive
+     */
+    private void repaintOutlineStrip(RepaintScheduler.Reason reason, int top, int bottom) {
+        repaints.repaintStrip(reason, (int) Math.floor(top * outlineScale) + outlineOffset,
+                (int) Math.ceil(bottom * outlineScale) + outlineOffset);
+    }
+
+    /**
+     * Converts a y coordinate in this panel to one in the outline.
+     *
+     * @param panelY a y coordinate in this panel
+     * @return the corresponding y coordinate in the outline
+     */
+    private int toOutlineY(int panelY) {
+        return (int) ((panelY - outlineOffset) / outlineScale);
+    }
+
+    /**
+     * Converts a rectangle in the outline to the rectangle of this panel it is
+     * drawn in.
+     *
+     * @param rect a rectangle in the outline
+     * @return the corresponding rectangle in this panel
+     */
+    private Rectangle toPanelRect(Rectangle rect) {
+        int top = (int) Math.floor(rect.y * outlineScale) + outlineOffset;
+        int bottom = (int) Math.ceil((rect.y + rect.height) * outlineScale) + outlineOffset;
+        return new Rectangle(rect.x, top, rect.width, bottom - top);
+    }
+
+    /**
+     * Returns the mipmap level the outline should be drawn at: the smallest
+     * level whose rows are still at least as tall as the rows on screen, so
+     * the outline images are never scaled down by more than half.
+     *
+     * @return a mipmap level
+     */
+    private int getMipLevel() {
+        int level = 0;
+        while (level < CodeOutlineImage.MAX_MIP_LEVEL && outlineScale < 1.0 / (2 << level)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Computes the height of the outline, its offset in this panel and the
+     * editor viewport rectangle from the current state of the editor.
+     */
+    private void updateLayout() {
+        Dimension editorComponent = editor.getScrollPane().getViewport().getComponents()[0].getSize();
         Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
         double editorHeight = editorComponent.getHeight();
         double pScrolled = visibleArea.getY() / (editorHeight - visibleArea.getHeight());
 
-        // make sure the text outline image is big enough
-        int linesWithoutFolds = editor.getDocument().getLineCount();
-        for (int i = 0; i < editor.getFoldingModel().getAllFoldRegions().length; i++) {
-            FoldRegion f = editor.getFoldingModel().getAllFoldRegions()[i];
-            int y = editor.getDocument().getLineNumber(f.getStartOffset());
-            int z = editor.getDocument().getLineNumber(f.getEndOffset());
-            if (!f.isExpanded())
-                linesWithoutFolds -= z - y;
+        // the height of the outline, without the lines hidden by folds
+        int linesWithoutFolds = Util.getLineCountMinusFolds(editor);
+        outlineHeight = (linesWithoutFolds + 6) * 2; // IDEA seems to add 6 lines to the end of the doc, maybe theres a better way to calculate this
+
+        int visibleHeight = getHeight();
+        if (prefs.isFitToHeight() && outlineHeight > getHeight() && getHeight() > 0) {
+            // the whole outline is drawn scaled down to the panel
+            outlineScale = (double) getHeight() / outlineHeight;
+            outlineOffset = 0;
+            visibleHeight = outlineHeight;
+        } else {
+            outlineScale = 1;
+            outlineOffset = (int) Math.min(-(outlineHeight - getHeight()) * pScrolled, 0);
         }
-        int height = (linesWithoutFolds + 6) * 2; // IDEA seems to add 6 lines to the end of the doc, maybe theres a better way to calculate this
+        viewportRect = getProportionalRectangle(editorComponent,
+                visibleArea, new Dimension(this.getWidth(), outlineHeight), pScrolled, visibleHeight); // TODO cache dimension
+    }
 
-        image.repaintCode(getGraphicsConfiguration(), getWidth(), height);
+    protected void paintComponent(Graphics g1) {
+        // in case the panel was painted without being told it is showing
+        activate();
+        if (outline == null) return;
+
+        paintTimer.start();
+        Color eBG = editor.getColorsScheme().getDefaultBackground();
+        Color caretColor = editor.getColorsScheme().getColor(EditorColors.CARET_COLOR);
 
-        BufferedImage fg = image.getFgImg();
-        BufferedImage bg = image.getBgImg();
+        Graphics2D g = (Graphics2D) g1;
+        List<Caret> carets = editor.getCaretModel().getAllCarets();
 
-        int yOffset = (int) Math.min(-(fg.getHeight() - getHeight()) * pScrolled, 0);
+        updateLayout();
+        int height = outlineHeight;
+        int yOffset = outlineOffset;
+        // the height of the outline drawn, which is all of it when fitted
+        int visibleHeight = outlineScale < 1 ? outlineHeight : getHeight();
+        paintTimer.end(PaintTimer.Phase.LAYOUT);
+
+        // make sure the outline tiles on screen are up to date; this only
+        // schedules a background render when the text, folds or color scheme
+        // changed, which starts with the lines in the editor's viewport
+        final CodeOutlineImage image = outline.getImage(view, getMipLevel());
+        image.repaintCode(view, getGraphicsConfiguration(), getWidth(), height, -yOffset, visibleHeight,
+                viewportRect.y + viewportRect.height / 2 - yOffset);
+        paintTimer.end(PaintTimer.Phase.REPAINT_CODE);
 
         // fill the whole area with white
         g.setBackground(eBG);
         g.clearRect(0, 0, getWidth(), getHeight());
 
+        // a fitted outline is drawn scaled down to the panel
+        AffineTransform transform = g.getTransform();
+        Object interpolation = g.getRenderingHint(RenderingHints.KEY_INTERPOLATION);
+        if (outlineScale < 1) {
+            g.scale(1, outlineScale);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+
         // Draw text backgrounds
-        g.drawImage(bg, 0, yOffset, null);
+        image.drawBackground(g, yOffset, visibleHeight);
+        paintTimer.end(PaintTimer.Phase.BACKGROUND);
 
         // draw current line
         g.setColor(editor.getColorsScheme().getColor(EditorColors.CARET_ROW_COLOR));
-        for (Caret c : carets) {
-            g.fillRect(0, Util.getLineMinusFolds(editor, c.getLogicalPosition().line) * 2 + 1 + yOffset, getWidth(), 2);
+        int[] caretRows = new int[carets.size()];
+        for (int i = 0; i < caretRows.length; i++) {
+            caretRows[i] = Util.getLineMinusFolds(editor, carets.get(i).getLogicalPosition().line);
+            g.fillRect(0, caretRows[i] * 2 + 1 + yOffset, getWidth(), 2);
         }
+        paintedCaretRows = caretRows;
+
+        // draw the hovered line, if it isn't highlighted in the editor
+        if (hoveredLine >= 0 && prefs.isHighlightLineInOutline()) {
+            g.setColor(CURRENTLINE_ATTRIBUTES.getBackgroundColor());
+            g.fillRect(0, Util.getLineMinusFolds(editor, hoveredLine) * 2 + 1 + yOffset, getWidth(), 2);
+        }
+        paintTimer.end(PaintTimer.Phase.CARET_ROWS);
 
         // draw errors/warnings
         if (prefs.isExtendErrorHighlights()) {
-            // sort by severity and highlight things that are more severe
-            for (RangeHighlighterEx h : highlighters) {
-                if (h.isThinErrorStripeMark() || !h.isValid())
-                    continue;
-                HighlightInfo tooltip = (HighlightInfo) h.getErrorStripeTooltip();
-                if (tooltip == null)
-                    continue;
-                if (tooltip.getDescription() != null) {
-
-
-                    int y1 = editor.getDocument().getLineNumber(h.getStartOffset());
-                    int y2 = editor.getDocument().getLineNumber(h.getEndOffset());
-                    int y1f = Util.getLineMinusFolds(editor, y1);
-                    int y2f = Util.getLineMinusFolds(editor, y2);
-
-                    int dy = y2f - y1f + 1;
-                    Color errorStripeMarkColor = h.getErrorStripeMarkColor();
-                    g.setColor(errorStripeMarkColor != null ? errorStripeMarkColor : JBColor.yellow);
-                    g.fillRect(0, y1f * 2 + yOffset, getWidth(), dy * 2 + 1);
-                }
-            }
+            outline.paintSeverities(view, g, yOffset, getWidth(), visibleHeight);
         }
+        paintTimer.end(PaintTimer.Phase.ERRORS);
 
         // draw the right margin
         final EditorSettings editorSettings = editor.getSettings();
         if (editorSettings.isRightMarginShown()) {
             int margin = editorSettings.getRightMargin(project);
             g.setColor(editor.getColorsScheme().getColor(EditorColors.RIGHT_MARGIN_COLOR));
-            g.drawLine(margin, 0, margin, getHeight());
+            g.drawLine(margin, 0, margin, visibleHeight);
         }
 
         // draw the selection
@@ -724,23 +983,23 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
             }
 
         }
+        paintTimer.end(PaintTimer.Phase.SELECTION);
 
         // draw the text itself
-        g.drawImage(fg, 0, yOffset, null);
+        image.drawForeground(g, yOffset, visibleHeight);
 
         // draw caret
         g.setColor(caretColor);
-        for (Caret c : carets) {
-            LogicalPosition logicalPosition = c.getLogicalPosition();
-            g.fillRect(logicalPosition.column, Util.getLineMinusFolds(editor, logicalPosition.line) * 2 + yOffset, 2, 4);
+        for (int i = 0; i < caretRows.length; i++) {
+            g.fillRect(carets.get(i).getLogicalPosition().column, caretRows[i] * 2 + yOffset, 2, 4);
         }
+        paintTimer.end(PaintTimer.Phase.FOREGROUND);
 
 
-        Rectangle vp = getProportionalRectangle(editorComponent,
-                visibleArea, new Dimension(this.getWidth(), height), pScrolled); // TODO cache dimension
+        Rectangle vp = viewportRect;
         // mask all but viewport
         if (prefs.isLightenCodeOutsideViewport()) {
-            Area mask = new Area(new Rectangle(this.getSize()));
+            Area mask = new Area(new Rectangle(getWidth(), visibleHeight));
             mask.subtract(new Area(new Rectangle(vp.x, vp.y, vp.width + 1, vp.height + 1)));
 
             g.setColor(new Color(eBG.getRed(), eBG.getGreen(), eBG.getBlue(), 180));
@@ -762,16 +1021,28 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
             }
         }
 
-
-
-
+        g.setTransform(transform);
+        if (interpolation != null) g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        paintTimer.end(PaintTimer.Phase.VIEWPORT);
+
+        final long paintNanos = paintTimer.getTotalNanos();
+        CodeOutlineMetrics.getInstance().panelPainted(this, image, paintNanos);
+        final int budget = prefs.getSlowFrameMillis();
+        if (budget > 0 && paintNanos > budget * 1000000L) {
+            // only counted for slow frames, as counting folds is not free
+            final Document document = editor.getDocument();
+            SlowFrameLog.getInstance().add(new SlowFrameLog.SlowFrame(getFileName(), paintNanos,
+                    paintTimer.getPhaseNanos(), document.getTextLength(), document.getLineCount(),
+                    editor.getFoldingModel().getAllFoldRegions().length, outline.getHighlighterCount(),
+                    carets.size()));
+        }
     }
 
     private Dimension shrinkHeight(Dimension size, int i) {
         return new Dimension(size.width, Math.min(size.height, i));
     }
 
-    private Rectangle getProportionalRectangle(Dimension outer, Rectangle inner, Dimension targetOuter, double pScrolled) {
+    private Rectangle getProportionalRectangle(Dimension outer, Rectangle inner, Dimension targetOuter, double pScrolled, int visibleHeight) {
         double x;
         double y;
         double height;
@@ -783,7 +1054,7 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         height = inner.getHeight() * pH;
         width = inner.getWidth() / inner.getHeight() * height * 1.22; // TODO 1.22 is a hack
         x = inner.getX() * pW;
-        y = (Math.min(getHeight(), targetOuter.getHeight()) - height) * pScrolled;
+        y = (Math.min(visibleHeight, targetOuter.getHeight()) - height) * pScrolled;
 
         return new Rectangle((int) x, (int) y, (int) width, (int) height);
     }
@@ -821,6 +1092,17 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         }
     }
 
+    private class HighlightInOutlineOptionAction extends AbstractAction {
+        public HighlightInOutlineOptionAction() {
+            super("Highlight Current Line in Outline Only");
+            putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_O));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            prefs.setHighlightLineInOutline(highlightLineInOutlineMenuItem.isSelected());
+        }
+    }
+
     private class ExtendErrorHighlightsOptionAction extends AbstractAction {
         public ExtendErrorHighlightsOptionAction() {
             super("Extend error highlights accross entire line");
@@ -831,6 +1113,28 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
             prefs.setExtendErrorHighlights(extendErrorHighlightsMenuItem.isSelected());
         }
     }
+    private class CompactImagesOptionAction extends AbstractAction {
+        public CompactImagesOptionAction() {
+            super("Compact Images");
+            putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_C));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            prefs.setCompactImages(compactImagesMenuItem.isSelected());
+        }
+    }
+
+    private class FitToHeightOptionAction extends AbstractAction {
+        public FitToHeightOptionAction() {
+            super("Fit to Height");
+            putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_F));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            prefs.setFitToHeight(fitToHeightMenuItem.isSelected());
+        }
+    }
+
     private class LightenCodeOutsideViewportOptionAction extends AbstractAction {
         public LightenCodeOutsideViewportOptionAction() {
             super("Lighten code outside viewport");
@@ -842,4 +1146,38 @@ public class CodeOutlinePanel extends JPanel implements Disposable {
         }
     }
 
+    private class SlowFramesAction extends AbstractAction {
+        public SlowFramesAction() {
+            super("Slow Frames...");
+            putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_S));
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            final StringBuilder text = new StringBuilder();
+            for (SlowFrameLog.SlowFrame frame : SlowFrameLog.getInstance().getFrames()) {
+                text.append(frame).append('\n');
+            }
+            if (text.length() == 0) text.append("No frame took longer than ").append(prefs.getSlowFrameMillis()).append(" ms.");
+
+            final JTextArea area = new JTextArea(text.toString(), 20, 100);
+            area.setEditable(false);
+            area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, area.getFont().getSize()));
+            JOptionPane.showMessageDialog(CodeOutlinePanel.this, new JScrollPane(area),
+                    "Code Outline Frames Over " + prefs.getSlowFrameMillis() + " ms", JOptionPane.PLAIN_MESSAGE);
+        }
+    }
+
+    private class RenderModeAction extends AbstractAction {
+        private final OutlineRenderMode mode;
+
+        public RenderModeAction(OutlineRenderMode mode) {
+            super(mode.getDisplayName());
+            this.mode = mode;
+        }
+
+        public void actionPerformed(ActionEvent e) {
+            prefs.setRenderMode(mode);
+        }
+    }
+
 }
@@ -74,6 +74,7 @@ public class CodeOutlinePlugin
     public @NotNull String getComponentName() { return "CodeOutlinePlugin"; }
 
     public synchronized void initComponent() {
+        CodeOutlineMetrics.getInstance().register();
         // and add a hook to create windows for new projects
         addProjectListener();
         // create tool windows for all of the open projects
@@ -108,6 +109,7 @@ public class CodeOutlinePlugin
      */
     private synchronized void regForProject(final Project project) {
         final CodeOutlineToolWindow window = new CodeOutlineToolWindow(this, project);
+        windows.put(project, window);
 
         ToolWindowManager twm = ToolWindowManager.getInstance(project);
         ToolWindowManagerEx twmEx = (ToolWindowManagerEx)twm;
@@ -123,7 +125,7 @@ public class CodeOutlinePlugin
 
 
         EditorPanelInjector injector = new EditorPanelInjector(project, this);
-        project.getMessageBus().connect().subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, injector);
+        project.getMessageBus().connect(project).subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, injector);
 
     }
 
@@ -151,7 +153,9 @@ public class CodeOutlinePlugin
         win.stop();
     }
 
-    public void disposeComponent() { }
+    public void disposeComponent() {
+        CodeOutlineMetrics.getInstance().unregister();
+    }
 
     public String getExternalFileName() { return "CodeOutlinePlugin"; }
 
@@ -159,13 +163,25 @@ public class CodeOutlinePlugin
         prefs.setAnimated(getBooleanValue(element, "animated-scroll", true));
         prefs.setHighlightLine(getBooleanValue(element,
                 "highlight-current-line", true));
+        prefs.setHighlightLineInOutline(getBooleanValue(element,
+                "highlight-line-in-outline", false));
+        prefs.setFitToHeight(getBooleanValue(element, "fit-to-height", false));
+        prefs.setCompactImages(getBooleanValue(element, "compact-images", false));
+        prefs.setRenderMode(OutlineRenderMode.fromName(getStringValue(element,
+                "render-mode", null), OutlineRenderMode.TEXT));
+        prefs.setSlowFrameMillis(getIntValue(element, "slow-frame-millis", 8));
     }
 
     public void writeExternal(Element element) {
         setBooleanValue(element, "animated-scroll", prefs.isAnimated());
         setBooleanValue(element, "highlight-current-line", prefs.isHighlightLine());
+        setBooleanValue(element, "highlight-line-in-outline", prefs.isHighlightLineInOutline());
         setBooleanValue(element, "extend-error-highlights", prefs.isExtendErrorHighlights());
         setBooleanValue(element, "lighten-code-outside-viewport", prefs.isLightenCodeOutsideViewport());
+        setBooleanValue(element, "fit-to-height", prefs.isFitToHeight());
+        setBooleanValue(element, "compact-images", prefs.isCompactImages());
+        setStringValue(element, "render-mode", prefs.getRenderMode().name());
+        setStringValue(element, "slow-frame-millis", Integer.toString(prefs.getSlowFrameMillis()));
 
 
     }
@@ -191,6 +207,61 @@ public class CodeOutlinePlugin
         }
     }
 
+    /**
+     * Extracts the text within the element inside the given DOM element with
+     * the given name. If no such element exists, the given default value is
+     * returned.
+     *
+     * @param element the DOM element containing an element of the given name
+     * @param name the name of the element whose text is
+     * @param defaultValue a value to return if no matching DOM element exists
+     * @return the text of the given element
+     */
+    private static String getStringValue(Element element, String name,
+            String defaultValue) {
+        Element subel = element.getChild(name);
+        if (subel != null) {
+            return subel.getTextTrim();
+        } else {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Extracts the integer within the element inside the given DOM element
+     * with the given name. If no such element exists, or it does not hold an
+     * integer, the given default value is returned.
+     *
+     * @param element the DOM element containing an element of the given name
+     * @param name the name of the element whose text is
+     * @param defaultValue a value to return if no matching DOM element exists
+     * @return the integer value extracted from the given element
+     */
+    private static int getIntValue(Element element, String name,
+            int defaultValue) {
+        Element subel = element.getChild(name);
+        if (subel == null) return defaultValue;
+        try {
+            return Integer.parseInt(subel.getTextTrim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Adds a child element with the given name to the given element,
+     * containing the given text.
+     *
+     * @param element the element in which the subelement should be created
+     * @param name the name of the element
+     * @param value the text to store
+     */
+    private void setStringValue(Element element, String name, String value) {
+        Element subel = new Element(name);
+        subel.setText(value);
+        element.addContent(subel);
+    }
+
     /**
      * Adds a child element with the given to the given element, containg a
      * textual representation of the given boolean value.
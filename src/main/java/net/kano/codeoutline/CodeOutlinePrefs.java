@@ -49,10 +49,20 @@ public class CodeOutlinePrefs {
 
     private boolean highlightLine = true;
 
+    private boolean highlightLineInOutline = false;
+
     private boolean lightenCodeOutsideViewport = true;
 
     private boolean extendErrorHighlights = true;
 
+    private boolean fitToHeight = false;
+
+    private boolean compactImages = false;
+
+    private OutlineRenderMode renderMode = OutlineRenderMode.TEXT;
+
+    private int slowFrameMillis = 8;
+
     public boolean isAnimated() { return animated; }
 
     public void setAnimated(boolean animated) {
@@ -73,6 +83,16 @@ public class CodeOutlinePrefs {
 
     public boolean isHighlightLine() { return highlightLine; }
 
+    public boolean isHighlightLineInOutline() { return highlightLineInOutline; }
+
+    public void setHighlightLineInOutline(boolean highlightLineInOutline) {
+        boolean old = this.highlightLineInOutline;
+
+        this.highlightLineInOutline = highlightLineInOutline;
+
+        pcs.firePropertyChange("highlightLineInOutline", old, highlightLineInOutline);
+    }
+
     public boolean isLightenCodeOutsideViewport() {
         return lightenCodeOutsideViewport;
     }
@@ -95,6 +115,52 @@ public class CodeOutlinePrefs {
         pcs.firePropertyChange("extendErrorHighlights", old, extendErrorHighlights);
     }
 
+    public boolean isFitToHeight() {
+        return fitToHeight;
+    }
+
+    public void setFitToHeight(boolean fitToHeight) {
+        boolean old = this.fitToHeight;
+        this.fitToHeight = fitToHeight;
+        pcs.firePropertyChange("fitToHeight", old, fitToHeight);
+    }
+
+    public boolean isCompactImages() {
+        return compactImages;
+    }
+
+    public void setCompactImages(boolean compactImages) {
+        boolean old = this.compactImages;
+        this.compactImages = compactImages;
+        pcs.firePropertyChange("compactImages", old, compactImages);
+    }
+
+    public OutlineRenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    public void setRenderMode(OutlineRenderMode renderMode) {
+        OutlineRenderMode old = this.renderMode;
+        this.renderMode = renderMode;
+        pcs.firePropertyChange("renderMode", old, renderMode);
+    }
+
+    /**
+     * Returns how long painting a frame may take before it is logged as slow,
+     * in milliseconds. Zero turns logging slow frames off.
+     *
+     * @return the paint budget in milliseconds
+     */
+    public int getSlowFrameMillis() {
+        return slowFrameMillis;
+    }
+
+    public void setSlowFrameMillis(int slowFrameMillis) {
+        int old = this.slowFrameMillis;
+        this.slowFrameMillis = slowFrameMillis;
+        pcs.firePropertyChange("slowFrameMillis", old, slowFrameMillis);
+    }
+
     public void addPropertyChangeListener(PropertyChangeListener listener) {
         pcs.addPropertyChangeListener(listener);
     }
@@ -75,8 +75,8 @@ public class CodeOutlineToolWindow extends JPanel {
     /** The panel currently being displayed. */
     private volatile CodeOutlinePanel currentPanel = null;
 
+    /** The panel of each file editor; a file open in several splits has several. */
     private Map<FileEditor, CodeOutlinePanel> editor2panel = new IdentityHashMap<FileEditor, CodeOutlinePanel>();
-    private Map<VirtualFile, CodeOutlinePanel> file2panel = new IdentityHashMap<VirtualFile, CodeOutlinePanel>();
 
     private final ToolWindowManagerListener toolWindowManagerListener = new ToolWindowManagerListener() {
         @Override
@@ -151,7 +151,7 @@ public class CodeOutlineToolWindow extends JPanel {
 
         @Override
         public void fileClosed(FileEditorManager source, VirtualFile file) {
-            closePanel(file);
+            closePanels(source);
         }
 
         /**
@@ -239,34 +239,44 @@ public class CodeOutlineToolWindow extends JPanel {
      * @param file a file
      */
     private synchronized CodeOutlinePanel openPanel(FileEditor fileEditor, VirtualFile file) {
+        CodeOutlinePanel panel = editor2panel.get(fileEditor);
+        if (panel != null) return panel;
+
         final Editor editor = ((TextEditor) fileEditor).getEditor();
-        final CodeOutlinePanel panel = editor instanceof EditorEx
+        panel = editor instanceof EditorEx
                 ? new CodeOutlinePanel(plugin, (EditorEx)editor)
                 : new CodeOutlinePanel(plugin, editor);
 
         editor2panel.put(fileEditor, panel);
-        file2panel.put(file, panel);
+        // disposed with the editor at the latest
+        OutlineRegistry.getInstance().register(panel, fileEditor);
 
         return panel;
     }
 
     /**
-     * Closes an open code outline panel for the given file, if any. If visible,
-     * the associated panel is hidden.
+     * Closes the code outline panels of the file editors which are no longer
+     * open. We are only told which file was closed, and it may still be open
+     * in another split. If visible, the associated panel is hidden.
      *
-     * @param file a file
+     * @param source the file editor manager
      */
-    private synchronized void closePanel(VirtualFile file) {
-        final CodeOutlinePanel panel = file2panel.remove(file);
-
-        if (panel == null) return;
+    private synchronized void closePanels(FileEditorManager source) {
+        final Map<FileEditor, CodeOutlinePanel> closed = new IdentityHashMap<FileEditor, CodeOutlinePanel>(editor2panel);
+        for (FileEditor fileEditor : source.getAllEditors()) {
+            closed.remove(fileEditor);
+        }
 
-        panel.dispose();
-        editor2panel.values().remove(panel);
+        for (Map.Entry<FileEditor, CodeOutlinePanel> entry : closed.entrySet()) {
+            final CodeOutlinePanel panel = entry.getValue();
+            editor2panel.remove(entry.getKey());
+            OutlineRegistry.getInstance().dispose(panel);
 
-        if (currentPanel == panel) {
-            remove(panel);
-            repaint();
+            if (currentPanel == panel) {
+                remove(panel);
+                currentPanel = null;
+                repaint();
+            }
         }
     }
 
@@ -276,10 +286,9 @@ public class CodeOutlineToolWindow extends JPanel {
     public synchronized void stop() {
         fem.removeFileEditorManagerListener(editorListener);
         for (CodeOutlinePanel panel : editor2panel.values()) {
-            panel.dispose();
+            OutlineRegistry.getInstance().dispose(panel);
         }
         editor2panel.clear();
-        file2panel.clear();
     }
 
     public synchronized CodeOutlinePanel getPanel(FileEditor editor) {
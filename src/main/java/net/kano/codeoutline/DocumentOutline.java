@@ -0,0 +1,459 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.editor.ex.MarkupModelEx;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.openapi.editor.impl.DocumentMarkupModel;
+import com.intellij.openapi.editor.impl.event.MarkupModelListener;
+import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.Key;
+import com.intellij.util.ui.UIUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The outline of a document, shared by all code outline panels showing it:
+ * those injected into each split editor and the one in the tool window. It
+ * tracks the markup of the document once and renders the outline once for
+ * each distinct way the editors fold it, so the panels only composite their
+ * own viewport, selection and carets on top.
+ * <p>
+ * Panels take a reference with {@link #acquire} and give it back with
+ * {@link #release}; the outline is disposed with the last reference. Each
+ * panel is a {@link View}, which is assigned the rendering matching its
+ * editor's folds and mipmap level whenever it asks for its image. A view
+ * whose folds change leaves a rendering shared with other views, so theirs
+ * is not rendered again.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class DocumentOutline implements Disposable {
+    private static final Key<DocumentOutline> KEY = Key.create("net.kano.codeoutline.DocumentOutline");
+
+    /**
+     * A panel showing the outline.
+     */
+    public interface View {
+        /**
+         * Returns the editor whose folds and color scheme the view shows.
+         *
+         * @return the editor of this view
+         */
+        EditorEx getEditor();
+
+        /**
+         * Called when tiles of the rendering shown by this view were updated.
+         */
+        void outlineChanged();
+
+        /**
+         * Called when a highlighter between the given offsets was added,
+         * removed or changed.
+         *
+         * @param startOffset the start of the highlighter
+         * @param endOffset the end of the highlighter
+         */
+        void markupChanged(int startOffset, int endOffset);
+    }
+
+    private final CodeOutlinePlugin plugin;
+    private final Project project;
+    private final Document document;
+    private final CodeOutlinePrefs prefs;
+    private final MarkupModelEx markupModel;
+    private final HighlighterIndex highlighters;
+    /** The views holding a reference to this outline. */
+    private final List<View> views = new ArrayList<View>();
+    /** The renderings of the outline, one for each fold layout and mipmap level in use. */
+    private final List<Rendering> renderings = new ArrayList<Rendering>();
+    private boolean disposed = false;
+    /** The number of listeners attached by this outline and not removed yet, not counting those of the images. */
+    private int listenerCount = 0;
+
+    /**
+     * A property change listener passing the options which change the outline
+     * image on to all renderings.
+     */
+    private final PropertyChangeListener prefListener = new PropertyChangeListener() {
+        public void propertyChange(PropertyChangeEvent evt) {
+            for (Rendering rendering : renderings) {
+                rendering.image.setRenderMode(prefs.getRenderMode());
+                rendering.image.setCompactStorage(prefs.isCompactImages());
+            }
+        }
+    };
+
+    /**
+     * A document listener passing the lines replaced by each edit on to the
+     * highlighter index and the severity layers.
+     */
+    private final DocumentListener docListener = new DocumentListener() {
+        /** The last changed line before the change. */
+        private int oldEndLine;
+
+        public void beforeDocumentChange(DocumentEvent event) {
+            oldEndLine = document.getLineNumber(event.getOffset() + event.getOldLength());
+        }
+
+        public void documentChanged(DocumentEvent event) {
+            final int startLine = document.getLineNumber(event.getOffset());
+            final int newEndLine = document.getLineNumber(event.getOffset() + event.getNewLength());
+            highlighters.linesReplaced(startLine, oldEndLine, newEndLine);
+            for (Rendering rendering : renderings) {
+                rendering.severities.linesReplaced(startLine, oldEndLine, newEndLine);
+            }
+        }
+    };
+
+    private DocumentOutline(CodeOutlinePlugin plugin, EditorEx editor) {
+        this.plugin = plugin;
+        this.project = editor.getProject();
+        this.document = editor.getDocument();
+        this.prefs = plugin.getPrefs();
+        this.markupModel = (MarkupModelEx) DocumentMarkupModel.forDocument(document, project, true);
+        this.highlighters = new HighlighterIndex(document);
+
+        document.addDocumentListener(docListener, countListener());
+        markupModel.addMarkupModelListener(countListener(), new MarkupModelListener() {
+            public void afterAdded(@NotNull RangeHighlighterEx rangeHighlighterEx) {
+                highlighters.add(rangeHighlighterEx);
+                highlighterChanged(rangeHighlighterEx);
+            }
+
+            public void beforeRemoved(@NotNull RangeHighlighterEx rangeHighlighterEx) {
+                highlighters.remove(rangeHighlighterEx);
+                highlighterChanged(rangeHighlighterEx);
+            }
+
+            @Override
+            public void attributesChanged(@NotNull RangeHighlighterEx rangeHighlighterEx, boolean b) {
+                highlighterChanged(rangeHighlighterEx);
+            }
+        });
+        UIUtil.invokeLaterIfNeeded(new Runnable() {
+            public void run() {
+                if (disposed) return;
+                for (RangeHighlighter rangeHighlighter : markupModel.getAllHighlighters()) {
+                    highlighters.add((RangeHighlighterEx) rangeHighlighter);
+                    for (Rendering rendering : renderings) {
+                        rendering.severities.highlighterChanged((RangeHighlighterEx) rangeHighlighter);
+                    }
+                }
+                for (View view : new ArrayList<View>(views)) {
+                    view.markupChanged(0, document.getTextLength());
+                }
+            }
+        });
+        prefs.addPropertyChangeListener(prefListener);
+        listenerCount++;
+        OutlineRegistry.getInstance().outlineCreated(this);
+    }
+
+    /**
+     * Returns the outline of the given view's document, creating it if no
+     * other view holds a reference to it, and takes a reference for the view.
+     *
+     * @param plugin the code outline plugin instance
+     * @param view a view about to show the outline
+     * @return the outline of the view's document
+     */
+    public static DocumentOutline acquire(CodeOutlinePlugin plugin, View view) {
+        final EditorEx editor = view.getEditor();
+        final Document document = editor.getDocument();
+        DocumentOutline outline = document.getUserData(KEY);
+        if (outline == null || outline.project != editor.getProject()) {
+            // the markup of a document belongs to a project, so a document
+            // open in a second project gets an outline of its own
+            final boolean shared = outline == null;
+            outline = new DocumentOutline(plugin, editor);
+            if (shared) document.putUserData(KEY, outline);
+        }
+        outline.views.add(view);
+        return outline;
+    }
+
+    /**
+     * Gives back the reference taken for the given view, disposing the
+     * outline if it was the last one.
+     *
+     * @param view a view which no longer shows the outline
+     */
+    public void release(View view) {
+        final Rendering rendering = getRendering(view);
+        if (rendering != null) leave(rendering, view);
+        if (views.remove(view) && views.isEmpty()) Disposer.dispose(this);
+    }
+
+    public void dispose() {
+        if (disposed) return;
+
+        disposed = true;
+        OutlineRegistry.getInstance().outlineDisposed(this);
+        if (document.getUserData(KEY) == this) document.putUserData(KEY, null);
+        prefs.removePropertyChangeListener(prefListener);
+        listenerCount--;
+        for (Rendering rendering : renderings) {
+            rendering.dispose();
+        }
+        renderings.clear();
+        views.clear();
+    }
+
+    /**
+     * Returns the image the given view should paint, which is rendered with
+     * the folds of its editor at the given mipmap level. The view is moved to
+     * another rendering if its folds or level changed.
+     *
+     * @param view a view holding a reference to this outline
+     * @param mipLevel the mipmap level the view draws the outline at
+     * @return the outline image for the view
+     */
+    public CodeOutlineImage getImage(View view, int mipLevel) {
+        final Rendering current = getRendering(view);
+        if (current != null && current.matches(view.getEditor(), mipLevel)) return current.image;
+
+        for (Rendering rendering : renderings) {
+            if (rendering != current && rendering.matches(view.getEditor(), mipLevel)) {
+                if (current != null) leave(current, view);
+                rendering.views.add(view);
+                return rendering.image;
+            }
+        }
+
+        if (current != null && current.views.size() == 1) {
+            // a view showing a rendering of its own keeps its tiles
+            current.image.setMipLevel(mipLevel);
+            return current.image;
+        }
+        if (current != null) leave(current, view);
+        final Rendering rendering = new Rendering(view.getEditor(), mipLevel);
+        rendering.views.add(view);
+        renderings.add(rendering);
+        return rendering.image;
+    }
+
+    /**
+     * Fills the error and warning stripes of the visible outline rows of the
+     * given view. The view must have got its image from {@link #getImage}.
+     *
+     * @param view a view holding a reference to this outline
+     * @param g the graphics to paint to
+     * @param yOffset the y coordinate of the first outline row
+     * @param width the width of the outline
+     * @param height the height of the visible part of the outline
+     */
+    public void paintSeverities(View view, Graphics g, int yOffset, int width, int height) {
+        final Rendering rendering = getRendering(view);
+        if (rendering == null) return;
+
+        rendering.severities.paint(g, FoldIndex.getInstance(rendering.editor), yOffset, width, height);
+    }
+
+    /**
+     * Notes that the folds of the given view's editor changed. A rendering
+     * the view shares with others is left to them, and the view gets another
+     * one the next time it asks for its image; a rendering of its own is
+     * rendered again.
+     *
+     * @param view a view holding a reference to this outline
+     */
+    public void foldsChanged(View view) {
+        final Rendering rendering = getRendering(view);
+        if (rendering == null) return;
+
+        if (rendering.views.size() > 1) {
+            leave(rendering, view);
+        } else {
+            rendering.image.foldsChanged();
+        }
+    }
+
+    /**
+     * Renders all renderings of the outline again from scratch.
+     */
+    public void refresh() {
+        for (Rendering rendering : renderings) {
+            rendering.image.refreshImage();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of pixel data held by all renderings.
+     *
+     * @return the size of the outline images in bytes
+     */
+    public long getImageBytes() {
+        long bytes = 0;
+        for (Rendering rendering : renderings) {
+            bytes += rendering.image.getImageBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of highlighters in the document's markup model.
+     *
+     * @return the number of highlighters
+     */
+    public int getHighlighterCount() {
+        return highlighters.size();
+    }
+
+    /**
+     * Returns the number of listeners this outline and its renderings have
+     * attached to the document, the markup models and the preferences and
+     * not removed yet.
+     *
+     * @return the number of attached listeners
+     */
+    public int getListenerCount() {
+        int count = listenerCount;
+        for (Rendering rendering : renderings) {
+            count += rendering.image.getListenerCount();
+        }
+        return count;
+    }
+
+    /**
+     * Counts a listener attached with the returned disposable as its parent.
+     * The disposable is disposed with this outline, or earlier by whoever
+     * attached the listener, removing the listener and uncounting it.
+     *
+     * @return the parent disposable for the listener
+     */
+    private Disposable countListener() {
+        listenerCount++;
+        final Disposable parent = new Disposable() {
+            public void dispose() {
+                listenerCount--;
+            }
+        };
+        Disposer.register(this, parent);
+        return parent;
+    }
+
+    private void highlighterChanged(RangeHighlighterEx highlighter) {
+        for (Rendering rendering : renderings) {
+            rendering.severities.highlighterChanged(highlighter);
+            rendering.image.markupChanged(highlighter.getStartOffset(), highlighter.getEndOffset());
+        }
+        for (View view : new ArrayList<View>(views)) {
+            view.markupChanged(highlighter.getStartOffset(), highlighter.getEndOffset());
+        }
+    }
+
+    private Rendering getRendering(View view) {
+        for (Rendering rendering : renderings) {
+            if (rendering.views.contains(view)) return rendering;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the given view from a rendering, disposing the rendering if no
+     * view is left, or making it follow the editor of another view if it
+     * followed the view's editor.
+     */
+    private void leave(Rendering rendering, View view) {
+        rendering.views.remove(view);
+        rendering.image.removeViewer(view);
+        if (rendering.views.isEmpty()) {
+            renderings.remove(rendering);
+            rendering.dispose();
+            return;
+        }
+        if (rendering.editor != view.getEditor()) return;
+        for (View other : rendering.views) {
+            if (other.getEditor() == rendering.editor) return;
+        }
+        rendering.setEditor(rendering.views.get(0).getEditor());
+    }
+
+    /**
+     * The outline as rendered with one fold layout at one mipmap level, and
+     * the views showing it. The outline is captured with the markup of the
+     * rendering's editor as well as the document's, so the rendering also
+     * listens to the editor's markup model, which holds find results and the
+     * highlighted line.
+     */
+    private class Rendering implements CodeOutlineListener {
+        private final CodeOutlineImage image;
+        private final SeverityLayer severities;
+        private final List<View> views = new ArrayList<View>();
+        /** The editor whose folds the outline is rendered with. */
+        private EditorEx editor;
+        /** The parent of the listener to the editor's markup model. */
+        private Disposable editorMarkup;
+
+        private Rendering(EditorEx editor, int mipLevel) {
+            this.editor = editor;
+            image = new CodeOutlineImageEx(editor, this);
+            image.setRenderMode(prefs.getRenderMode());
+            image.setCompactStorage(prefs.isCompactImages());
+            image.setMipLevel(mipLevel);
+            severities = new SeverityLayer(document, highlighters);
+            listenToEditorMarkup();
+        }
+
+        /**
+         * Returns whether the given editor folds the document the same way as
+         * the editor of this rendering, and the rendering is at the given
+         * level.
+         */
+        private boolean matches(EditorEx other, int mipLevel) {
+            if (image.getMipLevel() != mipLevel) return false;
+            return other == editor || FoldIndex.getInstance(editor).hasSameFolds(FoldIndex.getInstance(other));
+        }
+
+        private void setEditor(EditorEx editor) {
+            Disposer.dispose(editorMarkup);
+            this.editor = editor;
+            image.setEditor(editor);
+            listenToEditorMarkup();
+        }
+
+        private void listenToEditorMarkup() {
+            editorMarkup = countListener();
+            editor.getMarkupModel().addMarkupModelListener(editorMarkup, new MarkupModelListener() {
+                public void afterAdded(@NotNull RangeHighlighterEx rangeHighlighterEx) {
+                    image.markupChanged(rangeHighlighterEx.getStartOffset(), rangeHighlighterEx.getEndOffset());
+                }
+
+                public void beforeRemoved(@NotNull RangeHighlighterEx rangeHighlighterEx) {
+                    image.markupChanged(rangeHighlighterEx.getStartOffset(), rangeHighlighterEx.getEndOffset());
+                }
+
+                @Override
+                public void attributesChanged(@NotNull RangeHighlighterEx rangeHighlighterEx, boolean b) {
+                    image.markupChanged(rangeHighlighterEx.getStartOffset(), rangeHighlighterEx.getEndOffset());
+                }
+            });
+        }
+
+        private void dispose() {
+            Disposer.dispose(editorMarkup);
+            image.dispose();
+        }
+
+        public void shouldRepaint(CodeOutlineImage image) {
+            for (View view : new ArrayList<View>(views)) {
+                view.outlineChanged();
+            }
+        }
+
+        public void handleException(CodeOutlineImage image, Exception e) {
+            plugin.handleException(e);
+        }
+    }
+}
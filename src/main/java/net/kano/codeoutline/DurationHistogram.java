@@ -0,0 +1,62 @@
+package net.kano.codeoutline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets of powers of two microseconds, without locking,
+ * so it can be fed from any thread on every paint or render. Bucket
+ * <i>i</i> counts the durations below 2<sup><i>i</i></sup> microseconds
+ * and not below half of that; the last bucket counts all longer ones.
+ */
+public class DurationHistogram {
+    /** The number of buckets; the last starts at about 16 seconds. */
+    public static final int BUCKETS = 26;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Counts the given duration.
+     *
+     * @param nanos a duration in nanoseconds
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        final long micros = nanos / 1000;
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        for (long max = maxNanos.get(); nanos > max && !maxNanos.compareAndSet(max, nanos); max = maxNanos.get()) {
+            // another thread recorded a duration in the meantime
+        }
+    }
+
+    /**
+     * Forgets all durations counted so far.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    /**
+     * Returns the durations counted so far. Durations counted while this is
+     * called may or may not be included.
+     *
+     * @return a snapshot of this histogram
+     */
+    public DurationStats getStats() {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return new DurationStats(counts, count.get(), totalNanos.get(), maxNanos.get());
+    }
+}
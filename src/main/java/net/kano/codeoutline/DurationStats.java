@@ -0,0 +1,82 @@
+package net.kano.codeoutline;
+
+/**
+ * A snapshot of a {@link DurationHistogram}, shown through JMX as composite
+ * data. Percentiles are the upper limit of the bucket they fall into, but no
+ * more than the longest duration.
+ */
+public class DurationStats {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    public DurationStats(long[] bucketCounts, long count, long totalNanos, long maxNanos) {
+        this.bucketCounts = bucketCounts;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getTotalMillis() {
+        return totalNanos / 1e6;
+    }
+
+    public double getMeanMillis() {
+        return count == 0 ? 0 : totalNanos / 1e6 / count;
+    }
+
+    public double getMedianMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    public double getP90Millis() {
+        return getPercentileMillis(0.9);
+    }
+
+    public double getP99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    public double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    /**
+     * Returns the upper limit of each bucket in milliseconds; the last bucket
+     * has none.
+     *
+     * @return the bucket limits
+     */
+    public double[] getBucketLimitsMillis() {
+        final double[] limits = new double[bucketCounts.length - 1];
+        for (int i = 0; i < limits.length; i++) {
+            limits[i] = (1L << i) / 1e3;
+        }
+        return limits;
+    }
+
+    public long[] getBucketCounts() {
+        return bucketCounts.clone();
+    }
+
+    private double getPercentileMillis(double fraction) {
+        long total = 0;
+        for (long bucketCount : bucketCounts) {
+            total += bucketCount;
+        }
+        if (total == 0) return 0;
+
+        final long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < bucketCounts.length - 1; i++) {
+            seen += bucketCounts[i];
+            if (seen >= rank) return Math.min((1L << i) / 1e3, getMaxMillis());
+        }
+        return getMaxMillis();
+    }
+}
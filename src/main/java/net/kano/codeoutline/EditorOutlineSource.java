@@ -0,0 +1,78 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.impl.EditorImpl;
+import com.intellij.openapi.editor.impl.IterationState;
+import com.intellij.openapi.editor.markup.TextAttributes;
+
+import java.awt.*;
+
+/**
+ * The text of an editor as an {@link OutlineSource}: its document, with the
+ * spans of the editor's highlighting and its collapsed fold regions, as
+ * {@link IterationState} merges them. Must be used inside a read action.
+ */
+public class EditorOutlineSource implements OutlineSource {
+    private final EditorImpl editor;
+    private final Color defaultBg;
+    private final int defaultFg;
+
+    public EditorOutlineSource(EditorImpl editor) {
+        this.editor = editor;
+        final EditorColorsScheme scheme = editor.getColorsScheme();
+        defaultBg = scheme.getDefaultBackground();
+        defaultFg = opaque(scheme.getDefaultForeground());
+    }
+
+    public CharSequence getChars() {
+        return editor.getDocument().getCharsSequence();
+    }
+
+    public int getTabSize() {
+        return editor.getSettings().getTabSize(editor.getProject());
+    }
+
+    public String getFontName() {
+        return editor.getColorsScheme().getEditorFontName();
+    }
+
+    public void process(int startOffset, int endOffset, Visitor visitor) {
+        final IterationState iterationState = new IterationState(editor, startOffset, endOffset, false);
+        while (!iterationState.atEnd()) {
+            final int start = iterationState.getStartOffset();
+            final int end = iterationState.getEndOffset();
+            final TextAttributes attributes = iterationState.getMergedAttributes();
+            final Color fgColor = attributes.getForegroundColor();
+            final int fg = fgColor == null ? defaultFg : opaque(fgColor);
+
+            final FoldRegion fold = iterationState.getCurrentFold();
+            if (fold != null) {
+                if (!visitor.visitFold(start, end, fold.getPlaceholderText(), fg)) return;
+            } else {
+                final Color bgColor = getSpanBackground(attributes, defaultBg);
+                if (!visitor.visitSpan(start, end, fg, bgColor == null ? 0 : opaque(bgColor))) return;
+            }
+            iterationState.advance();
+        }
+    }
+
+    /**
+     * Returns the color the background of a token with the given attributes
+     * is drawn in, or <code>null</code> if it has no background of its own.
+     * Error stripe colors win over effect colors, which win over background
+     * colors.
+     */
+    private static Color getSpanBackground(TextAttributes attributes, Color defaultBg) {
+        if (attributes.getErrorStripeColor() != null) return attributes.getErrorStripeColor();
+        if (attributes.getEffectColor() != null) return attributes.getEffectColor();
+
+        final Color windowBgColor = attributes.getBackgroundColor();
+        if (windowBgColor != null && !windowBgColor.equals(defaultBg)) return windowBgColor;
+        return null;
+    }
+
+    private static int opaque(Color color) {
+        return color.getRGB() | 0xFF000000;
+    }
+}
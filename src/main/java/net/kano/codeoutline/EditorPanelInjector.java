@@ -87,6 +87,8 @@ public class EditorPanelInjector implements FileEditorManagerListener {
                 outlinePanel.setPreferredSize(new Dimension(110,0));
                 panel.add(outlinePanel, BorderLayout.LINE_END);
                 panels.put(editor, outlinePanel);
+                // disposed with the editor at the latest
+                OutlineRegistry.getInstance().register(outlinePanel, editor);
             } else {
                 logger.debug("I07: Injection skipped. Looks like we have already injected something here.");
             }
@@ -132,12 +134,9 @@ public class EditorPanelInjector implements FileEditorManagerListener {
             }
         }
 
-        CodeOutlinePanel panel;
         for (FileEditor editor: unseen) {
-            panel = panels.get(editor);
-//            panel.onClose();
             uninject(editor);
-            panels.remove(editor);
+            OutlineRegistry.getInstance().dispose(panels.remove(editor));
         }
     }
 
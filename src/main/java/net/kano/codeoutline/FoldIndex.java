@@ -0,0 +1,199 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.FoldRegion;
+import com.intellij.openapi.editor.ex.EditorEx;
+import com.intellij.openapi.util.Key;
+
+import java.util.Arrays;
+
+/**
+ * Maps between logical lines and the rows left visible by collapsed fold
+ * regions, in O(log F) for F collapsed regions.
+ * <p>
+ * The collapsed regions are merged into disjoint ranges of hidden lines,
+ * sorted by line, with the number of lines hidden above each of them. A
+ * collapsed region hides the lines after its first one, through its last one,
+ * so these lines map to the row of its first line. Regions nested in another
+ * collapsed region hide nothing more.
+ * <p>
+ * An index is kept for each editor and rebuilt on first use after the
+ * document changed or {@link #invalidate} was called.
+ */
+public class FoldIndex {
+    private static final Key<FoldIndex> KEY = Key.create("net.kano.codeoutline.FoldIndex");
+    /** A token replaced whenever the fold state of an editor changes. */
+    private static final Key<Object> FOLD_STATE_KEY = Key.create("net.kano.codeoutline.FoldIndex.state");
+    private static final int[] EMPTY = new int[0];
+
+    /** The modification stamp of the document when this index was built. */
+    private final long stamp;
+    /** The fold state token of the editor when this index was built. */
+    private final Object foldState;
+    /** The number of lines of the document. */
+    private final int lineCount;
+    /** The first line of each hidden range, which stays visible. */
+    private final int[] startLines;
+    /** The row of the first line of each hidden range. */
+    private final int[] startRows;
+    /** The number of lines hidden by each range and all ranges above it. */
+    private final int[] hiddenThrough;
+
+    private FoldIndex(EditorEx editor, Object foldState) {
+        final Document document = editor.getDocument();
+        this.foldState = foldState;
+        stamp = document.getModificationStamp();
+        lineCount = document.getLineCount();
+
+        final FoldRegion[] regions = editor.getFoldingModel().getAllFoldRegions();
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int count = 0;
+        for (FoldRegion region : regions) {
+            if (region.isExpanded() || !region.isValid()) continue;
+
+            final int startLine = document.getLineNumber(region.getStartOffset());
+            final int endLine = document.getLineNumber(region.getEndOffset());
+            if (endLine <= startLine) continue;
+
+            if (count > 0 && startLine <= ends[count - 1]) {
+                // nested in or chained to the previous range
+                ends[count - 1] = Math.max(ends[count - 1], endLine);
+                continue;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = startLine;
+            ends[count] = endLine;
+            count++;
+        }
+
+        if (count == 0) {
+            startLines = EMPTY;
+            startRows = EMPTY;
+            hiddenThrough = EMPTY;
+        } else {
+            startLines = Arrays.copyOf(starts, count);
+            startRows = new int[count];
+            hiddenThrough = new int[count];
+            int hidden = 0;
+            for (int i = 0; i < count; i++) {
+                startRows[i] = starts[i] - hidden;
+                hidden += ends[i] - starts[i];
+                hiddenThrough[i] = hidden;
+            }
+        }
+    }
+
+    /**
+     * Returns the fold index of the given editor, building it if the document
+     * or the fold state changed since it was last built. Must be called from
+     * within a read action.
+     *
+     * @param editor an editor
+     * @return the current fold index of the given editor
+     */
+    public static FoldIndex getInstance(EditorEx editor) {
+        final Object foldState = editor.getUserData(FOLD_STATE_KEY);
+        FoldIndex index = editor.getUserData(KEY);
+        if (index == null || index.foldState != foldState
+                || index.stamp != editor.getDocument().getModificationStamp()) {
+            // an index built while the folds change is rebuilt on next use
+            index = new FoldIndex(editor, foldState);
+            editor.putUserData(KEY, index);
+        }
+        return index;
+    }
+
+    /**
+     * Drops the fold index of the given editor, so the next call to
+     * {@link #getInstance} rebuilds it. Should be called when fold regions
+     * were collapsed, expanded, added or removed.
+     *
+     * @param editor an editor
+     */
+    public static void invalidate(EditorEx editor) {
+        editor.putUserData(FOLD_STATE_KEY, new Object());
+    }
+
+    /**
+     * Returns the row at which the given line is shown. Lines hidden by a
+     * collapsed fold region are shown at the row of its first line.
+     *
+     * @param line a logical line
+     * @return the visible row of the given line
+     */
+    public int getRow(int line) {
+        final int i = indexOf(startLines, line);
+        if (i < 0) return line;
+
+        final int hiddenAbove = i == 0 ? 0 : hiddenThrough[i - 1];
+        if (line <= startLines[i] + hiddenThrough[i] - hiddenAbove) {
+            return startRows[i];
+        }
+        return line - hiddenThrough[i];
+    }
+
+    /**
+     * Returns the logical line shown at the given row.
+     *
+     * @param row a visible row
+     * @return the logical line shown at the given row
+     */
+    public int getLine(int row) {
+        final int i = indexOf(startRows, row);
+        return i < 0 ? row : row + hiddenThrough[i];
+    }
+
+    /**
+     * Returns the number of rows left visible by the collapsed fold regions.
+     *
+     * @return the number of visible rows
+     */
+    public int getRowCount() {
+        return lineCount - (hiddenThrough.length == 0 ? 0 : hiddenThrough[hiddenThrough.length - 1]);
+    }
+
+    /**
+     * Returns whether the given index hides the same lines as this one, so
+     * both map every line to the same row.
+     *
+     * @param other a fold index of the same document
+     * @return whether both indexes have the same layout
+     */
+    public boolean hasSameFolds(FoldIndex other) {
+        return other == this || lineCount == other.lineCount
+                && Arrays.equals(startLines, other.startLines)
+                && Arrays.equals(hiddenThrough, other.hiddenThrough);
+    }
+
+    /**
+     * Returns a hash of the lines hidden by this index, equal for indexes with
+     * the same folds.
+     *
+     * @return a hash of the fold layout
+     */
+    public int getLayoutHash() {
+        return (lineCount * 31 + Arrays.hashCode(startLines)) * 31 + Arrays.hashCode(hiddenThrough);
+    }
+
+    /**
+     * Returns the index of the last of the given sorted values which is below
+     * the given value, or -1 if there is none.
+     */
+    private static int indexOf(int[] sorted, int value) {
+        int low = 0;
+        int high = sorted.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low - 1;
+    }
+}
@@ -0,0 +1,133 @@
+package net.kano.codeoutline;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+
+/**
+ * Tiny pre-rendered shapes of the printable ASCII characters, for drawing the
+ * outline without rasterizing a font. Each character of the outline is one
+ * pixel wide and {@link OutlineRenderer#LINE_HEIGHT} pixels tall, so a glyph
+ * is the ink coverage of the upper and the lower part of the character in the
+ * editor font: an <code>l</code> covers both, an <code>a</code> mostly the
+ * lower part, a <code>'</code> only the upper part.
+ * <p>
+ * The atlas is built once for the editor font and shared by all outlines.
+ */
+public class GlyphAtlas {
+    /** The first character with a glyph of its own. */
+    private static final char FIRST = '!';
+    /** The last character with a glyph of its own. */
+    private static final char LAST = '~';
+    /** The font size the glyphs are measured at. */
+    private static final int SAMPLE_SIZE = 32;
+    /** The lowest alpha of a glyph part which has any ink at all. */
+    private static final int MIN_ALPHA = 72;
+
+    /** The atlas for the editor font currently in use. */
+    private static GlyphAtlas instance = null;
+
+    private final String fontName;
+    /** The coverage of each character, as upper alpha << 8 | lower alpha. */
+    private final int[] masks = new int[LAST - FIRST + 1];
+    /** The mask of characters outside the printable ASCII range. */
+    private final int defaultMask;
+
+    private GlyphAtlas(String fontName) {
+        this.fontName = fontName;
+
+        final Font font = new Font(fontName, Font.BOLD, SAMPLE_SIZE);
+        final BufferedImage sample = new BufferedImage(SAMPLE_SIZE * 2, SAMPLE_SIZE * 2, BufferedImage.TYPE_BYTE_GRAY);
+        final Graphics2D g = sample.createGraphics();
+        final int[] upper = new int[masks.length];
+        final int[] lower = new int[masks.length];
+        int maxCoverage = 1;
+        try {
+            g.setFont(font);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            final FontMetrics metrics = g.getFontMetrics();
+            final int ascent = metrics.getAscent();
+            final int height = Math.min(sample.getHeight(), ascent + metrics.getDescent());
+            // split the middle of the x-height, so lower case letters without
+            // ascenders are mostly lower and apostrophes are upper
+            final int split = ascent * 3 / 4;
+
+            final char[] c = new char[1];
+            for (int i = 0; i < masks.length; i++) {
+                g.setColor(Color.BLACK);
+                g.fillRect(0, 0, sample.getWidth(), sample.getHeight());
+                g.setColor(Color.WHITE);
+                c[0] = (char) (FIRST + i);
+                g.drawChars(c, 0, 1, 0, ascent);
+
+                upper[i] = sumInk(sample.getRaster(), 0, split);
+                lower[i] = sumInk(sample.getRaster(), split, height);
+                maxCoverage = Math.max(maxCoverage, Math.max(upper[i], lower[i]));
+            }
+        } finally {
+            g.dispose();
+        }
+
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = toAlpha(upper[i], maxCoverage) << 8 | toAlpha(lower[i], maxCoverage);
+        }
+        defaultMask = 0xFF << 8 | 0xFF;
+    }
+
+    private static int sumInk(Raster raster, int fromY, int toY) {
+        int sum = 0;
+        for (int y = fromY; y < toY; y++) {
+            for (int x = 0; x < raster.getWidth(); x++) {
+                sum += raster.getSample(x, y, 0);
+            }
+        }
+        return sum;
+    }
+
+    private static int toAlpha(int coverage, int maxCoverage) {
+        if (coverage == 0) return 0;
+        // most characters have far less ink than the heaviest one
+        return Math.max(MIN_ALPHA, Math.min(255, coverage * 2 * 255 / maxCoverage));
+    }
+
+    /**
+     * Returns the atlas for the given editor font, building it if the font
+     * changed since the last call.
+     *
+     * @param fontName the name of the editor font
+     * @return an atlas for the given font
+     */
+    public static synchronized GlyphAtlas getInstance(String fontName) {
+        if (instance == null || !instance.fontName.equals(fontName)) {
+            instance = new GlyphAtlas(fontName);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the glyph of the given character, as the alpha of its upper part
+     * shifted left by eight bits, or'ed with the alpha of its lower part.
+     *
+     * @param c a non-whitespace character
+     * @return the glyph mask of the given character
+     */
+    public int getMask(char c) {
+        return c >= FIRST && c <= LAST ? masks[c - FIRST] : defaultMask;
+    }
+
+    /**
+     * Returns the given opaque color with the given alpha, premultiplied.
+     *
+     * @param rgb an opaque color
+     * @param alpha the alpha to apply, between 0 and 255
+     * @return a premultiplied ARGB pixel
+     */
+    public static int tint(int rgb, int alpha) {
+        if (alpha == 255) return rgb;
+
+        final int r = ((rgb >> 16) & 0xFF) * alpha / 255;
+        final int g = ((rgb >> 8) & 0xFF) * alpha / 255;
+        final int b = (rgb & 0xFF) * alpha / 255;
+        return alpha << 24 | r << 16 | g << 8 | b;
+    }
+}
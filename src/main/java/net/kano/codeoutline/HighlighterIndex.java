@@ -0,0 +1,284 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The range highlighters of a document, bucketed by line so the ones touching
+ * a range of lines are found without looking at all of them.
+ * <p>
+ * Each bucket covers a range of lines, starting at about
+ * {@link #BUCKET_LINES} lines, and holds the highlighters touching any of
+ * them. Highlighters are put into their buckets and taken out again as the
+ * markup model reports them. The lines of a highlighter are kept relative to
+ * the first line of the bucket it starts in, so an edit only moves the
+ * buckets below it; the highlighters of the buckets it touches are put into
+ * buckets again.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class HighlighterIndex {
+    /** The number of lines in each bucket. */
+    private static final int BUCKET_LINES = 64;
+
+    /**
+     * A callback for the highlighters found by {@link #process}.
+     */
+    public interface Visitor {
+        /**
+         * Called for each highlighter touching the requested lines.
+         *
+         * @param highlighter a highlighter
+         * @param startLine the line the highlighter starts on
+         * @param endLine the line the highlighter ends on
+         */
+        void visit(RangeHighlighterEx highlighter, int startLine, int endLine);
+    }
+
+    private final Document document;
+    /** The entry of each highlighter added and not removed. */
+    private final Map<RangeHighlighterEx, Entry> entries = new LinkedHashMap<RangeHighlighterEx, Entry>();
+    /** Highlighters added while the document was changing, put into buckets once the edit is known. */
+    private final List<Entry> unplaced = new ArrayList<Entry>();
+
+    /** The buckets by first line; each covers the lines up to the first line of the next one. */
+    private final List<Bucket> buckets = new ArrayList<Bucket>();
+    /** The number of lines the buckets cover. */
+    private int lineCount;
+
+    public HighlighterIndex(Document document) {
+        this.document = document;
+        reset();
+    }
+
+    public void add(RangeHighlighterEx highlighter) {
+        if (entries.containsKey(highlighter)) return;
+
+        final Entry entry = new Entry(highlighter);
+        entries.put(highlighter, entry);
+        if (lineCount == document.getLineCount()) {
+            place(entry);
+        } else {
+            // the lines below the edit in progress are not moved yet
+            unplaced.add(entry);
+        }
+    }
+
+    public void remove(RangeHighlighterEx highlighter) {
+        final Entry entry = entries.remove(highlighter);
+        if (entry == null) return;
+
+        unplace(entry);
+        unplaced.remove(entry);
+    }
+
+    /**
+     * Returns the number of highlighters added and not removed.
+     *
+     * @return the number of highlighters
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Notes an edit which replaced the lines between <code>startLine</code>
+     * and <code>oldEndLine</code> by the lines between <code>startLine</code>
+     * and <code>newEndLine</code>. The buckets below the edit are moved, and
+     * the highlighters of the buckets it touches are put into buckets again.
+     *
+     * @param startLine the first changed line
+     * @param oldEndLine the last changed line before the change
+     * @param newEndLine the last changed line after the change
+     */
+    public void linesReplaced(int startLine, int oldEndLine, int newEndLine) {
+        final int delta = newEndLine - oldEndLine;
+        final int first = getBucketIndex(startLine);
+        final int last = getBucketIndex(oldEndLine);
+
+        // highlighters touching the edited lines may have moved anywhere
+        // within them
+        final Set<Entry> moved = new LinkedHashSet<Entry>();
+        for (int b = first; b <= last; b++) {
+            moved.addAll(buckets.get(b).entries);
+        }
+        for (Entry entry : moved) {
+            unplace(entry);
+        }
+
+        final int regionStart = buckets.get(first).startLine;
+        for (int b = last + 1; b < buckets.size(); b++) {
+            buckets.get(b).startLine += delta;
+        }
+        lineCount += delta;
+        final int regionEnd = last + 1 < buckets.size() ? buckets.get(last + 1).startLine : lineCount;
+
+        // the emptied buckets are replaced by new ones over the lines they
+        // cover now; a short range is left to the bucket above
+        for (int b = last; b >= first; b--) {
+            buckets.remove(b);
+        }
+        final int length = regionEnd - regionStart;
+        if (first == 0 || length > BUCKET_LINES / 4) {
+            final int count = Math.max(1, (length + BUCKET_LINES / 2) / BUCKET_LINES);
+            for (int i = 0; i < count; i++) {
+                buckets.add(first + i, new Bucket(regionStart + (int) ((long) length * i / count)));
+            }
+        }
+
+        if (lineCount != document.getLineCount()) {
+            // an edit was missed; nothing in the buckets can be trusted
+            reset();
+            return;
+        }
+        for (Entry entry : moved) {
+            place(entry);
+        }
+        for (Entry entry : unplaced) {
+            place(entry);
+        }
+        unplaced.clear();
+    }
+
+    /**
+     * Calls the given visitor for each valid highlighter touching any of the
+     * given lines, once each, in no particular order.
+     *
+     * @param firstLine the first line to look at
+     * @param lastLine the last line to look at, inclusive
+     * @param visitor the visitor to call
+     */
+    public void process(int firstLine, int lastLine, Visitor visitor) {
+        if (lineCount != document.getLineCount()) reset();
+        if (lastLine < firstLine) return;
+
+        final int firstBucket = getBucketIndex(firstLine);
+        for (int b = firstBucket; b < buckets.size() && buckets.get(b).startLine <= lastLine; b++) {
+            final Bucket bucket = buckets.get(b);
+            for (int j = 0, size = bucket.entries.size(); j < size; j++) {
+                final Entry entry = bucket.entries.get(j);
+                // a highlighter spanning several buckets is only reported
+                // from the first of them which is looked at
+                if (entry.home != bucket && b != firstBucket) continue;
+
+                final int startLine = entry.getStartLine();
+                final int endLine = entry.getEndLine();
+                if (endLine < firstLine || startLine > lastLine) continue;
+
+                final RangeHighlighterEx highlighter = entry.highlighter;
+                if (highlighter.isValid()) visitor.visit(highlighter, startLine, endLine);
+            }
+        }
+    }
+
+    /**
+     * Builds the buckets for the current document from scratch.
+     */
+    private void reset() {
+        lineCount = document.getLineCount();
+        buckets.clear();
+        for (int line = 0; line == 0 || line < lineCount; line += BUCKET_LINES) {
+            buckets.add(new Bucket(line));
+        }
+        unplaced.clear();
+        for (Entry entry : entries.values()) {
+            entry.home = null;
+            place(entry);
+        }
+    }
+
+    /**
+     * Puts the given highlighter into the buckets of the lines it touches now.
+     * An invalid highlighter is kept out of all buckets.
+     */
+    private void place(Entry entry) {
+        final RangeHighlighterEx highlighter = entry.highlighter;
+        if (!highlighter.isValid()) return;
+
+        final int length = document.getTextLength();
+        final int startLine = document.getLineNumber(Math.min(highlighter.getStartOffset(), length));
+        final int endLine = Math.max(startLine, document.getLineNumber(Math.min(highlighter.getEndOffset(), length)));
+        final int home = getBucketIndex(startLine);
+        entry.home = buckets.get(home);
+        entry.start = startLine - entry.home.startLine;
+        entry.end = endLine - entry.home.startLine;
+        for (int b = home; b < buckets.size() && buckets.get(b).startLine <= endLine; b++) {
+            buckets.get(b).entries.add(entry);
+        }
+    }
+
+    /**
+     * Takes the given highlighter out of the buckets it was put into.
+     */
+    private void unplace(Entry entry) {
+        if (entry.home == null) return;
+
+        int home = getBucketIndex(entry.getStartLine());
+        if (buckets.get(home) != entry.home) home = buckets.indexOf(entry.home);
+        final int endLine = entry.getEndLine();
+        for (int b = home; b >= 0 && b < buckets.size() && buckets.get(b).startLine <= endLine; b++) {
+            buckets.get(b).entries.remove(entry);
+        }
+        entry.home = null;
+    }
+
+    /**
+     * Returns the index of the bucket covering the given line.
+     */
+    private int getBucketIndex(int line) {
+        int low = 0;
+        int high = buckets.size() - 1;
+        while (low < high) {
+            final int mid = (low + high + 1) >>> 1;
+            if (buckets.get(mid).startLine <= line) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * The highlighters touching a range of lines.
+     */
+    private static final class Bucket {
+        private int startLine;
+        private final List<Entry> entries = new ArrayList<Entry>();
+
+        private Bucket(int startLine) {
+            this.startLine = startLine;
+        }
+    }
+
+    /**
+     * A highlighter with its lines, relative to the first line of the bucket
+     * it starts in.
+     */
+    private static final class Entry {
+        private final RangeHighlighterEx highlighter;
+        /** The bucket the highlighter starts in, or null if it is in none. */
+        private Bucket home;
+        private int start;
+        private int end;
+
+        private Entry(RangeHighlighterEx highlighter) {
+            this.highlighter = highlighter;
+        }
+
+        private int getStartLine() {
+            return home.startLine + start;
+        }
+
+        private int getEndLine() {
+            return home.startLine + end;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package net.kano.codeoutline;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/**
+ * Converts outline images between the premultiplied ARGB images they are
+ * rendered to and indexed images taking a quarter or an eighth of the
+ * memory. The palette of an indexed image holds exactly the colors its
+ * ARGB image used; images using more than 256 colors are left as they are.
+ * <p>
+ * The color model of an indexed image can only hold colors which are not
+ * premultiplied, and converting them back and forth rounds translucent
+ * colors down a little every time. The premultiplied colors are therefore
+ * kept as a property of the indexed image and copied back as they were, so
+ * a tile compacted and expanded again on every edit stays the same.
+ */
+public class IndexedImages {
+    /** The largest number of colors an indexed image may hold. */
+    private static final int MAX_COLORS = 256;
+    /** The property of an indexed image holding its palette as premultiplied colors. */
+    private static final String PREMULTIPLIED_PALETTE = "net.kano.codeoutline.premultipliedPalette";
+
+    private IndexedImages() { }
+
+    /**
+     * Returns an indexed copy of the given image, or <code>null</code> if it
+     * uses too many colors. Images with up to 16 colors use 4 bits per pixel,
+     * others 8 bits.
+     *
+     * @param img a premultiplied ARGB image backed by an int array
+     * @return an indexed copy of the given image, or <code>null</code>
+     */
+    public static BufferedImage compact(BufferedImage img) {
+        final int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        final int stride = ((SinglePixelPackedSampleModel) img.getSampleModel()).getScanlineStride();
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+
+        // an open addressing table from premultiplied color to palette index
+        final int[] keys = new int[MAX_COLORS * 2];
+        final int[] indexes = new int[MAX_COLORS * 2];
+        final int[] palette = new int[MAX_COLORS];
+        final int[] premultiplied = new int[MAX_COLORS];
+        int colors = 0;
+        for (int i = 0; i < indexes.length; i++) indexes[i] = -1;
+
+        final byte[] mapped = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int p = pixels[y * stride + x];
+                int slot = (p * 0x9E3779B9 >>> 23) & (keys.length - 1);
+                while (indexes[slot] >= 0 && keys[slot] != p) slot = (slot + 1) & (keys.length - 1);
+                if (indexes[slot] < 0) {
+                    if (colors == MAX_COLORS) return null;
+                    keys[slot] = p;
+                    indexes[slot] = colors;
+                    premultiplied[colors] = p;
+                    palette[colors++] = unpremultiply(p);
+                }
+                mapped[y * width + x] = (byte) indexes[slot];
+            }
+        }
+
+        final int bits = colors <= 16 ? 4 : 8;
+        final IndexColorModel model = new IndexColorModel(bits, colors, palette, 0, true, -1, DataBuffer.TYPE_BYTE);
+        final WritableRaster raster = model.createCompatibleWritableRaster(width, height);
+        final Hashtable<String, Object> properties = new Hashtable<String, Object>();
+        properties.put(PREMULTIPLIED_PALETTE, Arrays.copyOf(premultiplied, colors));
+        final BufferedImage indexed = new BufferedImage(model, raster, false, properties);
+        if (bits == 8) {
+            final byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            System.arraycopy(mapped, 0, data, 0, mapped.length);
+        } else {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    raster.setSample(x, y, 0, mapped[y * width + x]);
+                }
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * Copies the given image into the given premultiplied ARGB image of the
+     * same size, which must be backed by an int array.
+     *
+     * @param src an indexed or premultiplied ARGB image
+     * @param dst a premultiplied ARGB image
+     */
+    public static void copy(BufferedImage src, BufferedImage dst) {
+        if (src.getType() == dst.getType()) {
+            dst.getRaster().setRect(src.getRaster());
+            return;
+        }
+
+        final int[] palette;
+        final Object premultiplied = src.getProperty(PREMULTIPLIED_PALETTE);
+        if (premultiplied instanceof int[]) {
+            palette = (int[]) premultiplied;
+        } else {
+            // not compacted here; the colors are as close as the model keeps them
+            final IndexColorModel model = (IndexColorModel) src.getColorModel();
+            palette = new int[model.getMapSize()];
+            model.getRGBs(palette);
+            for (int i = 0; i < palette.length; i++) palette[i] = premultiply(palette[i]);
+        }
+
+        final int[] pixels = ((DataBufferInt) dst.getRaster().getDataBuffer()).getData();
+        final int stride = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        final WritableRaster raster = src.getRaster();
+        final int width = Math.min(src.getWidth(), dst.getWidth());
+        final int height = Math.min(src.getHeight(), dst.getHeight());
+        int[] row = null;
+        for (int y = 0; y < height; y++) {
+            row = raster.getSamples(0, y, width, 1, 0, row);
+            for (int x = 0; x < width; x++) {
+                pixels[y * stride + x] = palette[row[x]];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes holding the pixels of the given image.
+     *
+     * @param img an image
+     * @return the size of the image's pixel data in bytes
+     */
+    public static long getByteSize(BufferedImage img) {
+        final DataBuffer buffer = img.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    private static int unpremultiply(int p) {
+        final int a = p >>> 24;
+        if (a == 0 || a == 255) return p;
+        final int r = Math.min(255, ((p >> 16) & 0xFF) * 255 / a);
+        final int g = Math.min(255, ((p >> 8) & 0xFF) * 255 / a);
+        final int b = Math.min(255, (p & 0xFF) * 255 / a);
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private static int premultiply(int p) {
+        final int a = p >>> 24;
+        if (a == 255) return p;
+        final int r = ((p >> 16) & 0xFF) * a / 255;
+        final int g = ((p >> 8) & 0xFF) * a / 255;
+        final int b = (p & 0xFF) * a / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+}
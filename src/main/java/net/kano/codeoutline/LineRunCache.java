@@ -0,0 +1,613 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.FoldRegion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The spans another {@link OutlineSource} reports for each line of a document,
+ * kept as runs of palette entries so a range of lines is drawn again without
+ * asking the source, which for an editor means merging its highlighter,
+ * markup and folds all over again.
+ * <p>
+ * Each cached line holds two parallel arrays, the palette index and the
+ * length of each run, covering the line and its line break. A span crossing a
+ * line break is split into a run on each line. A collapsed fold region is a
+ * run of a palette entry with a placeholder on each line it covers, the first
+ * of them flagged as its start.
+ * <p>
+ * Each cached line also holds its shape as a block, packed by
+ * {@link BlockMeasure}, which is all {@link OutlineRenderMode#BLOCK} draws of
+ * lines outside collapsed fold regions.
+ * <p>
+ * Lines are captured from the source the first time they are drawn. Edits,
+ * markup and fold changes are queued from the event dispatch thread, and drop
+ * the lines they touch when {@link #update} applies them. An edit can change
+ * how the lines below it are highlighted, as when it opens a comment, so the
+ * line after it is captured again on update, and so on until a line comes out
+ * as it was cached: the point where the lexer picked up its old state.
+ * <p>
+ * Except for the methods queueing changes, which may be called at any time,
+ * all methods must be called from a single thread inside a read action.
+ */
+public class LineRunCache implements OutlineBlockSource {
+    /** The flag of a run which starts a collapsed fold region. */
+    private static final int FOLD_START = 0x40000000;
+    /** The bits of a run holding its palette index. */
+    private static final int STYLE = FOLD_START - 1;
+
+    /** The flag of a line with runs of a collapsed fold region. */
+    private static final byte FOLDED = 1;
+    /** The flag of a line which may be highlighted differently than cached. */
+    private static final byte UNVERIFIED = 2;
+
+    /** The most lines captured at once when checking lines below an edit. */
+    private static final int MAX_VERIFY_LINES = 64;
+
+    private static final int[] EMPTY = new int[0];
+
+    private static final int EDIT = 0;
+    private static final int DROP = 1;
+    private static final int FOLDS = 2;
+    private static final int CLEAR = 3;
+
+    private final Document document;
+    /** Changes not applied yet, as {kind, arguments} arrays; guarded by itself. */
+    private final List<int[]> pending = new ArrayList<int[]>();
+
+    private Editor editor;
+    private OutlineSource source;
+
+    /** The palette index and length of each run of each line, or null for lines not cached. */
+    private int[][] styles = null;
+    private int[][] lengths = null;
+    private byte[] flags = null;
+    /** The block of each cached line, as packed by {@link BlockMeasure}. */
+    private long[] blocks = null;
+    private int lineCount = 0;
+    private boolean unverified = false;
+
+    private final Map<Style, Integer> paletteIndexes = new HashMap<Style, Integer>();
+    private final Style probe = new Style();
+    private int[] foregrounds = new int[16];
+    private int[] backgrounds = new int[16];
+    private String[] placeholders = new String[16];
+    private int paletteSize = 0;
+
+    /** The runs of the line being captured. */
+    private int[] lineStyles = new int[64];
+    private int[] lineLengths = new int[64];
+    private int lineRuns = 0;
+
+    public LineRunCache(Document document) {
+        this.document = document;
+    }
+
+    /**
+     * Queues an edit which replaced the lines between <code>startLine</code>
+     * and <code>oldEndLine</code> by the lines between <code>startLine</code>
+     * and <code>newEndLine</code>.
+     *
+     * @param startLine the first changed line
+     * @param oldEndLine the last changed line before the change
+     * @param newEndLine the last changed line after the change
+     */
+    public void linesReplaced(int startLine, int oldEndLine, int newEndLine) {
+        enqueue(new int[] { EDIT, startLine, oldEndLine, newEndLine });
+    }
+
+    /**
+     * Queues dropping the given lines, whose highlighting changed.
+     *
+     * @param firstLine the first changed line
+     * @param lastLine the last changed line, inclusive
+     */
+    public void linesChanged(int firstLine, int lastLine) {
+        enqueue(new int[] { DROP, firstLine, lastLine });
+    }
+
+    /**
+     * Queues dropping the lines of fold regions collapsed before or after the
+     * fold state of the editor changed.
+     */
+    public void foldsChanged() {
+        enqueue(new int[] { FOLDS });
+    }
+
+    /**
+     * Queues dropping all lines, as after the color scheme changed.
+     */
+    public void clear() {
+        enqueue(new int[] { CLEAR });
+    }
+
+    private void enqueue(int[] change) {
+        synchronized (pending) {
+            pending.add(change);
+        }
+    }
+
+    /**
+     * Applies the queued changes, and captures the lines below edits again
+     * until they come out as cached. Must be called before the cache is used
+     * as a source.
+     *
+     * @param editor the editor whose folds the source reports
+     * @param source the source to capture lines from
+     * @return the first and last line of each range of lines which were
+     *         cached and are now highlighted differently
+     */
+    public List<int[]> update(Editor editor, OutlineSource source) {
+        this.editor = editor;
+        this.source = source;
+
+        final List<int[]> changes;
+        synchronized (pending) {
+            changes = new ArrayList<int[]>(pending);
+            pending.clear();
+        }
+        final int documentLines = document.getLineCount();
+        if (styles == null) {
+            // the changes queued so far are all older than the document
+            reset(documentLines);
+            return new ArrayList<int[]>();
+        }
+        for (int[] change : changes) {
+            switch (change[0]) {
+                case EDIT:
+                    replace(change[1], change[2], change[3]);
+                    break;
+                case DROP:
+                    drop(change[1], change[2]);
+                    break;
+                case FOLDS:
+                    dropFolds();
+                    break;
+                default:
+                    reset(lineCount);
+            }
+        }
+        if (lineCount != documentLines) {
+            // a change was missed; nothing cached can be trusted
+            reset(documentLines);
+            return new ArrayList<int[]>();
+        }
+        return verify();
+    }
+
+    public CharSequence getChars() {
+        return source.getChars();
+    }
+
+    public int getTabSize() {
+        return source.getTabSize();
+    }
+
+    public String getFontName() {
+        return source.getFontName();
+    }
+
+    /**
+     * Reports the cached runs of the given range, capturing the lines not
+     * cached yet. Spans and folds are cut to the range, as an editor's source
+     * reports them.
+     */
+    public void process(int startOffset, int endOffset, Visitor visitor) {
+        if (endOffset <= startOffset) return;
+
+        final int firstLine = document.getLineNumber(startOffset);
+        final int lastLine = document.getLineNumber(endOffset);
+        ensureCaptured(firstLine, lastLine);
+
+        int offset = document.getLineStartOffset(firstLine);
+        int foldStart = -1;
+        int foldEnd = -1;
+        int foldStyle = 0;
+        for (int line = firstLine; line <= lastLine; line++) {
+            final int[] runStyles = styles[line];
+            final int[] runLengths = lengths[line];
+            for (int i = 0; i < runStyles.length; i++) {
+                final int runStart = offset;
+                final int runEnd = offset + runLengths[i];
+                offset = runEnd;
+                if (runEnd <= startOffset) continue;
+                if (runStart >= endOffset) break;
+
+                final int style = runStyles[i] & STYLE;
+                if (placeholders[style] != null) {
+                    if (foldStart < 0 || (runStyles[i] & FOLD_START) != 0) {
+                        if (foldStart >= 0 && !visitor.visitFold(foldStart, foldEnd, placeholders[foldStyle],
+                                foregrounds[foldStyle])) return;
+                        foldStart = Math.max(runStart, startOffset);
+                        foldStyle = style;
+                    }
+                    foldEnd = Math.min(runEnd, endOffset);
+                    continue;
+                }
+                if (foldStart >= 0) {
+                    if (!visitor.visitFold(foldStart, foldEnd, placeholders[foldStyle], foregrounds[foldStyle])) {
+                        return;
+                    }
+                    foldStart = -1;
+                }
+                if (!visitor.visitSpan(Math.max(runStart, startOffset), Math.min(runEnd, endOffset),
+                        foregrounds[style], backgrounds[style])) return;
+            }
+        }
+        if (foldStart >= 0) visitor.visitFold(foldStart, foldEnd, placeholders[foldStyle], foregrounds[foldStyle]);
+    }
+
+    /**
+     * Reports the cached block of each line of the given range, capturing the
+     * lines not cached yet. The rows of collapsed fold regions are measured
+     * from their runs.
+     */
+    public void processBlocks(int startOffset, int endOffset, BlockVisitor visitor) {
+        final int firstLine = document.getLineNumber(startOffset);
+        final int lastLine = document.getLineNumber(endOffset);
+        ensureCaptured(firstLine, lastLine);
+
+        for (int line = firstLine; line <= lastLine; line++) {
+            if ((flags[line] & FOLDED) == 0) {
+                final long block = blocks[line];
+                if (!visitor.visitBlock(BlockMeasure.getIndent(block), BlockMeasure.getLength(block),
+                        BlockMeasure.getColor(block))) return;
+                continue;
+            }
+            int last = line;
+            while (last < lastLine && (flags[last + 1] & FOLDED) != 0) {
+                last++;
+            }
+            final BlockMeasure measure = new BlockMeasure(getChars(), getTabSize(), visitor);
+            process(Math.max(startOffset, document.getLineStartOffset(line)),
+                    Math.min(endOffset, document.getLineEndOffset(last)), measure);
+            if (!measure.finish()) return;
+            line = last;
+        }
+    }
+
+    private void reset(int lines) {
+        lineCount = lines;
+        styles = new int[lines][];
+        lengths = new int[lines][];
+        flags = new byte[lines];
+        blocks = new long[lines];
+        unverified = false;
+    }
+
+    /**
+     * Replaces the given lines by as many uncached lines as they became, and
+     * marks the line below them to be checked.
+     */
+    private void replace(int startLine, int oldEndLine, int newEndLine) {
+        final int newCount = lineCount + newEndLine - oldEndLine;
+        if (newCount > styles.length) {
+            final int capacity = Math.max(newCount, styles.length + styles.length / 2);
+            styles = Arrays.copyOf(styles, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            flags = Arrays.copyOf(flags, capacity);
+            blocks = Arrays.copyOf(blocks, capacity);
+        }
+        if (newCount != lineCount) {
+            final int tail = lineCount - oldEndLine - 1;
+            System.arraycopy(styles, oldEndLine + 1, styles, newEndLine + 1, tail);
+            System.arraycopy(lengths, oldEndLine + 1, lengths, newEndLine + 1, tail);
+            System.arraycopy(flags, oldEndLine + 1, flags, newEndLine + 1, tail);
+            System.arraycopy(blocks, oldEndLine + 1, blocks, newEndLine + 1, tail);
+            if (newCount < lineCount) {
+                Arrays.fill(styles, newCount, lineCount, null);
+                Arrays.fill(lengths, newCount, lineCount, null);
+                Arrays.fill(flags, newCount, lineCount, (byte) 0);
+            }
+            lineCount = newCount;
+        }
+        drop(startLine, newEndLine);
+        if (newEndLine + 1 < lineCount) {
+            flags[newEndLine + 1] |= UNVERIFIED;
+            unverified = true;
+        }
+    }
+
+    /**
+     * Forgets the runs of the given lines. A line still to be checked stays
+     * marked.
+     */
+    private void drop(int firstLine, int lastLine) {
+        firstLine = Math.max(0, firstLine);
+        lastLine = Math.min(lineCount - 1, lastLine);
+        for (int line = firstLine; line <= lastLine; line++) {
+            styles[line] = null;
+            lengths[line] = null;
+            flags[line] &= ~FOLDED;
+        }
+    }
+
+    /**
+     * Forgets the lines which were folded when captured, and the lines folded
+     * now.
+     */
+    private void dropFolds() {
+        for (int line = 0; line < lineCount; line++) {
+            if ((flags[line] & FOLDED) != 0) drop(line, line);
+        }
+        if (editor == null) return;
+        for (FoldRegion region : editor.getFoldingModel().getAllFoldRegions()) {
+            if (region.isExpanded() || !region.isValid()) continue;
+            drop(document.getLineNumber(region.getStartOffset()), document.getLineNumber(region.getEndOffset()));
+        }
+    }
+
+    /**
+     * Captures the lines marked after edits again, and the ones below them
+     * until a line comes out as it was cached. Uncached lines below an edit
+     * are skipped, checking the next cached line instead.
+     */
+    private List<int[]> verify() {
+        final List<int[]> changed = new ArrayList<int[]>();
+        if (!unverified) return changed;
+        unverified = false;
+
+        for (int line = 0; line < lineCount; line++) {
+            if ((flags[line] & UNVERIFIED) == 0) continue;
+
+            int check = line;
+            int chunk = 1;
+            while (check < lineCount) {
+                flags[check] &= ~UNVERIFIED;
+                if (styles[check] == null) {
+                    // nothing to compare; what is captured later is current
+                    while (check < lineCount && styles[check] == null) {
+                        flags[check] &= ~UNVERIFIED;
+                        check++;
+                    }
+                    continue;
+                }
+                int last = check;
+                while (last + 1 < lineCount && last - check + 1 < chunk && styles[last + 1] != null) {
+                    last++;
+                }
+                final int[][] oldStyles = Arrays.copyOfRange(styles, check, last + 1);
+                final int[][] oldLengths = Arrays.copyOfRange(lengths, check, last + 1);
+                capture(check, last);
+
+                int converged = -1;
+                for (int i = check; i <= last; i++) {
+                    flags[i] &= ~UNVERIFIED;
+                    // a folded line shows nothing of the lexer's state
+                    if ((flags[i] & FOLDED) == 0 && Arrays.equals(styles[i], oldStyles[i - check])
+                            && Arrays.equals(lengths[i], oldLengths[i - check])) {
+                        converged = i;
+                        break;
+                    }
+                }
+                final int changedTo = converged < 0 ? last : converged - 1;
+                if (changedTo >= check) addRange(changed, check, changedTo);
+                if (converged >= 0) break;
+                check = last + 1;
+                chunk = Math.min(chunk * 2, MAX_VERIFY_LINES);
+            }
+            line = Math.max(line, check);
+        }
+        return changed;
+    }
+
+    private static void addRange(List<int[]> ranges, int first, int last) {
+        final int[] previous = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+        if (previous != null && previous[1] + 1 >= first) {
+            previous[1] = Math.max(previous[1], last);
+        } else {
+            ranges.add(new int[] { first, last });
+        }
+    }
+
+    /**
+     * Captures the lines between the given ones which are not cached, or
+     * whose runs no longer cover them.
+     */
+    private void ensureCaptured(int firstLine, int lastLine) {
+        int captured = 0;
+        int line = firstLine;
+        while (line <= lastLine) {
+            if (isCached(line)) {
+                line++;
+                continue;
+            }
+            final int from = line;
+            while (line <= lastLine && !isCached(line)) {
+                line++;
+            }
+            capture(from, line - 1);
+            captured += line - from;
+        }
+        CodeOutlineMetrics.getInstance().linesLookedUp(lastLine - firstLine + 1 - captured, captured);
+    }
+
+    private boolean isCached(int line) {
+        final int[] runLengths = lengths[line];
+        if (runLengths == null) return false;
+
+        int length = 0;
+        for (int runLength : runLengths) {
+            length += runLength;
+        }
+        return length == getLineEnd(line) - document.getLineStartOffset(line);
+    }
+
+    /**
+     * Returns the offset after the line break ending the given line.
+     */
+    private int getLineEnd(int line) {
+        return line + 1 < lineCount ? document.getLineStartOffset(line + 1) : document.getTextLength();
+    }
+
+    /**
+     * Captures the given lines from the source, starting at the line a fold
+     * region collapsed across the first of them starts on.
+     */
+    private void capture(int firstLine, int lastLine) {
+        final int lineStart = document.getLineStartOffset(firstLine);
+        final FoldRegion fold = editor == null ? null : editor.getFoldingModel().getCollapsedRegionAtOffset(lineStart);
+        if (fold != null && fold.getStartOffset() < lineStart) {
+            firstLine = document.getLineNumber(fold.getStartOffset());
+        }
+
+        final Capture capture = new Capture(firstLine, new BlockMeasure(source.getChars(), source.getTabSize(), null));
+        source.process(document.getLineStartOffset(firstLine), getLineEnd(lastLine), capture);
+        // the last line of the document has no line break to end it
+        while (capture.line <= lastLine) {
+            capture.endLine();
+        }
+    }
+
+    /**
+     * Records the spans reported for a range of whole lines, as runs split at
+     * the line breaks.
+     */
+    private class Capture implements Visitor {
+        private final BlockMeasure measure;
+        private int line;
+        private int lineEnd;
+        private boolean folded = false;
+
+        private Capture(int firstLine, BlockMeasure measure) {
+            this.measure = measure;
+            line = firstLine;
+            lineEnd = getLineEnd(firstLine);
+            lineRuns = 0;
+        }
+
+        public boolean visitSpan(int startOffset, int endOffset, int foreground, int background) {
+            add(startOffset, endOffset, getPaletteIndex(foreground, background, null));
+            return true;
+        }
+
+        public boolean visitFold(int startOffset, int endOffset, String placeholder, int foreground) {
+            final int style = getPaletteIndex(foreground, 0, placeholder);
+            folded = true;
+            final int end = Math.min(endOffset, lineEnd);
+            addRun(style | FOLD_START, end - startOffset);
+            if (end == lineEnd) endLine();
+            add(end, endOffset, style);
+            return true;
+        }
+
+        /** Adds runs of the given style, split at the line breaks. */
+        private void add(int startOffset, int endOffset, int style) {
+            while (startOffset < endOffset) {
+                final int end = Math.min(endOffset, lineEnd);
+                addRun(style, end - startOffset);
+                startOffset = end;
+                if (end == lineEnd) endLine();
+            }
+        }
+
+        private void endLine() {
+            store(line, folded, measure);
+            folded = false;
+            line++;
+            lineEnd = line < lineCount ? getLineEnd(line) : Integer.MAX_VALUE;
+        }
+    }
+
+    private void addRun(int style, int length) {
+        if (length <= 0) return;
+
+        if (lineRuns > 0 && lineStyles[lineRuns - 1] == style && (style & FOLD_START) == 0) {
+            lineLengths[lineRuns - 1] += length;
+            return;
+        }
+        if (lineRuns == lineStyles.length) {
+            lineStyles = Arrays.copyOf(lineStyles, lineRuns * 2);
+            lineLengths = Arrays.copyOf(lineLengths, lineRuns * 2);
+        }
+        lineStyles[lineRuns] = style;
+        lineLengths[lineRuns] = length;
+        lineRuns++;
+    }
+
+    private void store(int line, boolean folded, BlockMeasure measure) {
+        if (line < lineCount) {
+            styles[line] = lineRuns == 0 ? EMPTY : Arrays.copyOf(lineStyles, lineRuns);
+            lengths[line] = lineRuns == 0 ? EMPTY : Arrays.copyOf(lineLengths, lineRuns);
+            if (folded || hasFold(styles[line])) {
+                flags[line] |= FOLDED;
+            } else {
+                flags[line] &= ~FOLDED;
+                blocks[line] = measureLine(line, measure);
+            }
+        }
+        lineRuns = 0;
+    }
+
+    /**
+     * Measures the runs of the line being captured, which has no fold region.
+     */
+    private long measureLine(int line, BlockMeasure measure) {
+        final CharSequence chars = source.getChars();
+        measure.reset();
+        int offset = document.getLineStartOffset(line);
+        for (int i = 0; i < lineRuns; i++) {
+            measure.add(chars, offset, offset + lineLengths[i], foregrounds[lineStyles[i] & STYLE]);
+            offset += lineLengths[i];
+        }
+        return measure.getBlock();
+    }
+
+    private boolean hasFold(int[] runStyles) {
+        for (int style : runStyles) {
+            if (placeholders[style & STYLE] != null) return true;
+        }
+        return false;
+    }
+
+    private int getPaletteIndex(int foreground, int background, String placeholder) {
+        probe.set(foreground, background, placeholder);
+        final Integer index = paletteIndexes.get(probe);
+        if (index != null) return index;
+
+        if (paletteSize == foregrounds.length) {
+            foregrounds = Arrays.copyOf(foregrounds, paletteSize * 2);
+            backgrounds = Arrays.copyOf(backgrounds, paletteSize * 2);
+            placeholders = Arrays.copyOf(placeholders, paletteSize * 2);
+        }
+        foregrounds[paletteSize] = foreground;
+        backgrounds[paletteSize] = background;
+        placeholders[paletteSize] = placeholder;
+        final Style style = new Style();
+        style.set(foreground, background, placeholder);
+        paletteIndexes.put(style, paletteSize);
+        return paletteSize++;
+    }
+
+    /**
+     * The colors of a palette entry, and the placeholder of a fold region.
+     */
+    private static final class Style {
+        private int foreground;
+        private int background;
+        private String placeholder;
+
+        private void set(int foreground, int background, String placeholder) {
+            this.foreground = foreground;
+            this.background = background;
+            this.placeholder = placeholder;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Style)) return false;
+            final Style other = (Style) o;
+            return foreground == other.foreground && background == other.background
+                    && (placeholder == null ? other.placeholder == null : placeholder.equals(other.placeholder));
+        }
+
+        public int hashCode() {
+            return (foreground * 31 + background) * 31 + (placeholder == null ? 0 : placeholder.hashCode());
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package net.kano.codeoutline;
+
+/**
+ * An {@link OutlineSource} which keeps the shape of each line as a block, so
+ * {@link OutlineRenderMode#BLOCK} can draw lines without walking their spans.
+ * Other sources are measured span by span with a {@link BlockMeasure}.
+ */
+public interface OutlineBlockSource extends OutlineSource {
+    /**
+     * A callback for the rows reported by {@link #processBlocks}.
+     */
+    interface BlockVisitor {
+        /**
+         * Called for each row of the outline, in order.
+         *
+         * @param indent the column the row's text starts at
+         * @param length the number of columns from there to the end of the
+         *        row's last visible character
+         * @param color the color most of the row's visible characters are
+         *        drawn in, or zero if it has none
+         * @return whether to go on; <code>false</code> stops processing
+         */
+        boolean visitBlock(int indent, int length, int color);
+    }
+
+    /**
+     * Calls the given visitor for each row of the given whole lines, until it
+     * returns <code>false</code>. A collapsed fold region and the lines it
+     * covers make one row, measured with its placeholder.
+     *
+     * @param startOffset the start of the first line
+     * @param endOffset the end of the last line
+     * @param visitor the visitor to call
+     */
+    void processBlocks(int startOffset, int endOffset, BlockVisitor visitor);
+}
@@ -0,0 +1,304 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Rendered outline tiles saved across IDE sessions, so a restored editor shows
+ * its outline before it was rendered. Entries are looked up by a key naming
+ * the file, its time stamp and length, the color scheme and everything else
+ * the rendering depends on; a file changed on disk simply stops matching.
+ * <p>
+ * Each entry is a deflated file of raw pixels in the <code>codeoutline</code>
+ * directory of the IDE system directory. A memory-mapped index holds a slot
+ * for each entry with the hash of its key, its size, and when it was last
+ * used; once the entries take more than {@link #MAX_BYTES}, the least recently
+ * used ones are deleted.
+ * <p>
+ * Failing to read or write the cache is never an error: the outline is
+ * rendered as if nothing was cached.
+ */
+public class OutlineCache {
+    private static final Logger logger = Logger.getInstance(OutlineCache.class.getName());
+
+    /** Marks an index of this format; other indexes are wiped. */
+    private static final int MAGIC = 0x434f4331;
+    /** The magic number, and the use counter. */
+    private static final int HEADER_SIZE = 12;
+    /** The hash of the key, the last use, and the size of the entry. */
+    private static final int SLOT_SIZE = 24;
+    private static final int SLOTS = 1024;
+    /** The most bytes all entries may take on disk. */
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    private static OutlineCache instance = null;
+
+    private final File directory;
+    /** The index, or null if it could not be opened. */
+    private final MappedByteBuffer index;
+
+    private OutlineCache(File directory) {
+        this.directory = directory;
+        this.index = openIndex();
+    }
+
+    /**
+     * Returns the cache in the IDE system directory, opening it on first use.
+     *
+     * @return the outline cache
+     */
+    public static synchronized OutlineCache getInstance() {
+        if (instance == null) {
+            instance = new OutlineCache(new File(PathManager.getSystemPath(), "codeoutline"));
+        }
+        return instance;
+    }
+
+    private MappedByteBuffer openIndex() {
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) return null;
+
+            final RandomAccessFile file = new RandomAccessFile(new File(directory, "index"), "rw");
+            try {
+                final boolean created = file.length() == 0;
+                final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + SLOTS * SLOT_SIZE);
+                if (created || buffer.getInt(0) != MAGIC) {
+                    // a new or foreign index; whatever entries exist are unknown
+                    for (int i = 0; i < buffer.capacity(); i++) buffer.put(i, (byte) 0);
+                    buffer.putInt(0, MAGIC);
+                    final File[] entries = directory.listFiles();
+                    if (entries != null) {
+                        for (File entry : entries) {
+                            if (entry.getName().endsWith(".tiles")) entry.delete();
+                        }
+                    }
+                }
+                return buffer;
+            } finally {
+                // the mapping stays valid after the file is closed
+                file.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Could not open the outline cache in " + directory, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the tiles stored under the given key by tile index, each as a
+     * foreground and background image, or <code>null</code> if none are.
+     *
+     * @param key the key the tiles were stored under
+     * @return the stored tiles, or <code>null</code>
+     */
+    public synchronized Map<Integer, BufferedImage[]> load(String key) {
+        if (index == null) return null;
+
+        final long hash = hash(key);
+        final int slot = findSlot(hash);
+        if (slot < 0) return null;
+
+        final File file = getEntryFile(hash);
+        try {
+            final DataInputStream in = new DataInputStream(new InflaterInputStream(
+                    new BufferedInputStream(new FileInputStream(file))));
+            try {
+                // a different key with the same hash is a miss
+                if (!key.equals(in.readUTF())) return null;
+
+                final Map<Integer, BufferedImage[]> tiles = new TreeMap<Integer, BufferedImage[]>();
+                for (int count = in.readInt(); count > 0; count--) {
+                    final int tileIndex = in.readInt();
+                    tiles.put(tileIndex, new BufferedImage[] { readImage(in), readImage(in) });
+                }
+                index.putLong(getSlotOffset(slot) + 8, nextUse());
+                return tiles;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.debug(e);
+            removeSlot(slot);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given tiles under the given key, replacing any stored
+     * before, and deletes the least recently used entries if the cache grew
+     * too large.
+     *
+     * @param key the key to store the tiles under
+     * @param tiles foreground and background images by tile index
+     */
+    public synchronized void store(String key, Map<Integer, BufferedImage[]> tiles) {
+        if (index == null) return;
+
+        final long hash = hash(key);
+        final File file = getEntryFile(hash);
+        final File temp = new File(directory, file.getName() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp))));
+            try {
+                out.writeUTF(key);
+                out.writeInt(tiles.size());
+                for (Map.Entry<Integer, BufferedImage[]> entry : tiles.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    writeImage(out, entry.getValue()[0]);
+                    writeImage(out, entry.getValue()[1]);
+                }
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!temp.renameTo(file)) throw new IOException("Could not rename " + temp);
+        } catch (IOException e) {
+            logger.debug(e);
+            temp.delete();
+            return;
+        }
+
+        int slot = findSlot(hash);
+        if (slot < 0) slot = findSlot(0);
+        if (slot < 0) {
+            slot = getLeastRecentlyUsedSlot(-1);
+            removeSlot(slot);
+        }
+        final int offset = getSlotOffset(slot);
+        index.putLong(offset, hash);
+        index.putLong(offset + 8, nextUse());
+        index.putLong(offset + 16, file.length());
+
+        while (getTotalBytes() > MAX_BYTES) {
+            final int victim = getLeastRecentlyUsedSlot(slot);
+            if (victim < 0) break;
+            removeSlot(victim);
+        }
+        index.force();
+    }
+
+    private static BufferedImage readImage(DataInputStream in) throws IOException {
+        final int width = in.readInt();
+        final int height = in.readInt();
+        if (width <= 0 || height <= 0 || width > 4096 || height > OutlineTile.HEIGHT) {
+            throw new IOException("Bad tile size " + width + "x" + height);
+        }
+        final byte[] bytes = new byte[width * height * 4];
+        in.readFully(bytes);
+
+        final int[] pixels = new int[width * height];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+        final BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        img.getRaster().setDataElements(0, 0, width, height, pixels);
+        return img;
+    }
+
+    private static void writeImage(DataOutputStream out, BufferedImage img) throws IOException {
+        if (img.getType() != BufferedImage.TYPE_INT_ARGB_PRE) {
+            // compacted tiles are stored expanded
+            final BufferedImage expanded = new BufferedImage(img.getWidth(), img.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            IndexedImages.copy(img, expanded);
+            img = expanded;
+        }
+        final int width = img.getWidth();
+        final int height = img.getHeight();
+        final int[] pixels = (int[]) img.getRaster().getDataElements(0, 0, width, height, null);
+        final byte[] bytes = new byte[pixels.length * 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().put(pixels);
+
+        out.writeInt(width);
+        out.writeInt(height);
+        out.write(bytes);
+    }
+
+    private File getEntryFile(long hash) {
+        return new File(directory, Long.toHexString(hash) + ".tiles");
+    }
+
+    private static int getSlotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Returns the slot holding the given hash, or -1 if there is none. A hash
+     * of zero finds a free slot.
+     */
+    private int findSlot(long hash) {
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (index.getLong(getSlotOffset(slot)) == hash) return slot;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the used slot which was used least recently, other than the
+     * given one, or -1 if there is none.
+     */
+    private int getLeastRecentlyUsedSlot(int except) {
+        int found = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            final int offset = getSlotOffset(slot);
+            if (slot == except || index.getLong(offset) == 0) continue;
+
+            final long use = index.getLong(offset + 8);
+            if (use < oldest) {
+                oldest = use;
+                found = slot;
+            }
+        }
+        return found;
+    }
+
+    private void removeSlot(int slot) {
+        final int offset = getSlotOffset(slot);
+        final long hash = index.getLong(offset);
+        if (hash != 0) getEntryFile(hash).delete();
+        index.putLong(offset, 0);
+        index.putLong(offset + 8, 0);
+        index.putLong(offset + 16, 0);
+    }
+
+    private long getTotalBytes() {
+        long total = 0;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            total += index.getLong(getSlotOffset(slot) + 16);
+        }
+        return total;
+    }
+
+    /**
+     * Returns the next value of the use counter kept in the index header.
+     */
+    private long nextUse() {
+        final long use = index.getLong(4) + 1;
+        index.putLong(4, use);
+        return use;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the given key, never zero, which marks
+     * free slots.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,117 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Keeps track of every code outline panel and document outline, for disposal
+ * and accounting.
+ * <p>
+ * Each panel is registered as a child of the file editor it belongs to in the
+ * {@link Disposer} tree, so it is disposed with the editor even if whoever
+ * created it forgets to. Panels are always disposed through
+ * {@link #dispose}, which makes the Disposer dispose the listeners registered
+ * with the panel as their parent too.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class OutlineRegistry {
+    private static final OutlineRegistry instance = new OutlineRegistry();
+
+    private final Set<CodeOutlinePanel> panels = new LinkedHashSet<CodeOutlinePanel>();
+    private final Set<DocumentOutline> outlines = new LinkedHashSet<DocumentOutline>();
+
+    private OutlineRegistry() { }
+
+    public static OutlineRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Registers a new panel, to be disposed with the given parent at the
+     * latest.
+     *
+     * @param panel a new code outline panel
+     * @param parent the file editor or other object the panel belongs to
+     */
+    public void register(CodeOutlinePanel panel, Disposable parent) {
+        panels.add(panel);
+        CodeOutlineMetrics.getInstance().panelCreated(panel, panel.getFileName());
+        Disposer.register(parent, panel);
+    }
+
+    /**
+     * Disposes the given panel along with the listeners registered with it as
+     * their parent. Does nothing if it was disposed already.
+     *
+     * @param panel a registered panel
+     */
+    public void dispose(CodeOutlinePanel panel) {
+        if (panels.contains(panel)) Disposer.dispose(panel);
+    }
+
+    void panelDisposed(CodeOutlinePanel panel) {
+        panels.remove(panel);
+        CodeOutlineMetrics.getInstance().panelDisposed(panel);
+    }
+
+    void outlineCreated(DocumentOutline outline) {
+        outlines.add(outline);
+    }
+
+    void outlineDisposed(DocumentOutline outline) {
+        outlines.remove(outline);
+    }
+
+    /**
+     * Returns the number of panels which were created and not disposed yet,
+     * whether they were shown or not.
+     *
+     * @return the number of live panels
+     */
+    public int getPanelCount() {
+        return panels.size();
+    }
+
+    /**
+     * Returns the number of document outlines in use.
+     *
+     * @return the number of live document outlines
+     */
+    public int getOutlineCount() {
+        return outlines.size();
+    }
+
+    /**
+     * Returns the number of listeners the panels and document outlines have
+     * attached to editors, documents, markup models and the preferences.
+     *
+     * @return the number of attached listeners
+     */
+    public int getListenerCount() {
+        int count = 0;
+        for (CodeOutlinePanel panel : panels) {
+            count += panel.getListenerCount();
+        }
+        for (DocumentOutline outline : outlines) {
+            count += outline.getListenerCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes of pixel data held by all outline images.
+     *
+     * @return the size of all outline images in bytes
+     */
+    public long getImageBytes() {
+        long bytes = 0;
+        for (DocumentOutline outline : outlines) {
+            bytes += outline.getImageBytes();
+        }
+        return bytes;
+    }
+}
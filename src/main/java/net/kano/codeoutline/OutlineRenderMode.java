@@ -0,0 +1,46 @@
+package net.kano.codeoutline;
+
+/**
+ * The ways the text outline can be drawn.
+ */
+public enum OutlineRenderMode {
+    /** Draws each token as text with a tiny font. */
+    TEXT("Text"),
+    /** Writes one pixel per character straight into the outline image. */
+    PIXELS("Pixels"),
+    /** Copies a pre-rendered shape per character into the outline image. */
+    GLYPHS("Glyphs"),
+    /**
+     * Draws each line as a bar from its indentation to the end of its text,
+     * in the color most of it is drawn in, like the AllMargins extension.
+     */
+    BLOCK("Blocks");
+
+    private final String displayName;
+
+    OutlineRenderMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    /**
+     * Returns the name shown to the user for this mode.
+     *
+     * @return the display name
+     */
+    public String getDisplayName() { return displayName; }
+
+    /**
+     * Returns the mode with the given name, or the given default if there is
+     * no such mode.
+     *
+     * @param name a mode name, as returned by {@link #name()}
+     * @param defaultValue a mode to return if the name is unknown
+     * @return the mode with the given name
+     */
+    public static OutlineRenderMode fromName(String name, OutlineRenderMode defaultValue) {
+        for (OutlineRenderMode mode : values()) {
+            if (mode.name().equals(name)) return mode;
+        }
+        return defaultValue;
+    }
+}
@@ -0,0 +1,225 @@
+package net.kano.codeoutline;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Draws the text of an {@link OutlineSource} into a foreground and a
+ * background image, two pixel rows per line, in one of the
+ * {@link OutlineRenderMode}s. Needs nothing but the JDK, so it renders the
+ * same with or without an IDE around it.
+ * <p>
+ * Each line starts a new outline row, except for line breaks inside a
+ * collapsed fold region, which draws its placeholder in their place. Text is
+ * drawn on the top pixel row of its outline row, or on both in glyph mode;
+ * span backgrounds on the bottom one. In block mode, each row is a bar from
+ * its indentation to the end of its text in the row's dominant color, shaded
+ * lighter on the bottom pixel row, and span backgrounds are not drawn.
+ * <p>
+ * A renderer keeps state while rendering, so it must not be used by two
+ * threads at once.
+ */
+public class OutlineRenderer {
+    /** The number of pixel rows each line of text takes in the outline. */
+    public static final int LINE_HEIGHT = 2;
+    /** The opacity of the bottom pixel row of a block. */
+    private static final int BLOCK_SHADE = 96;
+
+    private final OutlineRenderMode renderMode;
+
+    private CharSequence chars;
+    private int tabSize;
+    /** The pixels of the images, in pixel and glyph mode. */
+    private int[] fgPixels;
+    private int[] bgPixels;
+    /** The number of array elements between two pixel rows. */
+    private int pixelStride;
+    /** The graphics of the images, in text mode. */
+    private Graphics2D fG;
+    private Graphics2D bG;
+    /** The glyphs to draw characters with in glyph mode. */
+    private GlyphAtlas glyphs;
+    /** The text color last set on {@link #fG}, and the color it was set from. */
+    private Color textColor;
+    private int textRgb;
+    private int width;
+    private int height;
+    /** The position of the next character, with y the top pixel row of its outline row. */
+    private int x;
+    private int y;
+
+    private final OutlineSource.Visitor visitor = new OutlineSource.Visitor() {
+        public boolean visitSpan(int startOffset, int endOffset, int foreground, int background) {
+            for (int i = startOffset; ; i++) {
+                i = drawRun(chars, i, endOffset, foreground, background);
+                if (i >= endOffset) return true;
+
+                // a newer edit may make this render pointless, so give up at
+                // the next line
+                if (isCancelled()) return false;
+                x = 0;
+                y += LINE_HEIGHT;
+            }
+        }
+
+        public boolean visitFold(int startOffset, int endOffset, String placeholder, int foreground) {
+            drawRun(placeholder, 0, placeholder.length(), foreground, 0);
+            return true;
+        }
+    };
+
+    private final OutlineBlockSource.BlockVisitor blockVisitor = new OutlineBlockSource.BlockVisitor() {
+        public boolean visitBlock(int indent, int length, int color) {
+            drawBlock(indent, length, color);
+            y += LINE_HEIGHT;
+            return !isCancelled();
+        }
+    };
+
+    public OutlineRenderer(OutlineRenderMode renderMode) {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * Draws the text between the given offsets into the given images. The
+     * images must be premultiplied ARGB images backed by an int array.
+     *
+     * @param source the text to draw
+     * @param startOffset the start of the first line to draw
+     * @param endOffset the end of the last line to draw
+     * @param fg the image to draw the text to
+     * @param bg the image to draw span backgrounds to
+     * @param top the y coordinate in the images of the top of the first line
+     */
+    public void render(OutlineSource source, int startOffset, int endOffset,
+            BufferedImage fg, BufferedImage bg, int top) {
+        chars = source.getChars();
+        tabSize = Math.max(1, source.getTabSize());
+        width = fg.getWidth();
+        height = fg.getHeight();
+        x = 0;
+        y = top;
+        try {
+            if (renderMode == OutlineRenderMode.TEXT) {
+                fG = fg.createGraphics();
+                bG = bg.createGraphics();
+                fG.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                fG.setFont(new Font(source.getFontName(), Font.BOLD, 2));
+                textColor = null;
+            } else {
+                fgPixels = ((DataBufferInt) fg.getRaster().getDataBuffer()).getData();
+                bgPixels = ((DataBufferInt) bg.getRaster().getDataBuffer()).getData();
+                pixelStride = ((SinglePixelPackedSampleModel) fg.getSampleModel()).getScanlineStride();
+                glyphs = renderMode == OutlineRenderMode.GLYPHS ? GlyphAtlas.getInstance(source.getFontName()) : null;
+            }
+            if (renderMode != OutlineRenderMode.BLOCK) {
+                source.process(startOffset, endOffset, visitor);
+            } else if (source instanceof OutlineBlockSource) {
+                ((OutlineBlockSource) source).processBlocks(startOffset, endOffset, blockVisitor);
+            } else {
+                final BlockMeasure measure = new BlockMeasure(chars, tabSize, blockVisitor);
+                source.process(startOffset, endOffset, measure);
+                measure.finish();
+            }
+        } finally {
+            if (fG != null) fG.dispose();
+            if (bG != null) bG.dispose();
+            fG = null;
+            bG = null;
+            fgPixels = null;
+            bgPixels = null;
+            glyphs = null;
+            chars = null;
+        }
+    }
+
+    /**
+     * Returns whether rendering should stop. Checked at every line break; the
+     * default implementation never stops.
+     *
+     * @return whether to stop rendering
+     */
+    protected boolean isCancelled() {
+        return false;
+    }
+
+    /**
+     * Draws the given characters up to the first line break at the current
+     * position, advancing it.
+     *
+     * @return the index of the line break, or <code>to</code> if there is none
+     */
+    private int drawRun(CharSequence text, int from, int to, int fg, int bg) {
+        final boolean visible = y >= 0 && y + 1 < height;
+        if (fG != null) return drawText(text, from, to, fg, bg, visible);
+
+        final int fgRow = y * pixelStride;
+        final int bgRow = fgRow + pixelStride;
+        for (int i = from; i < to; i++) {
+            final char c = text.charAt(i);
+            if (c == '\n') return i;
+            if (!visible || x >= width) continue;
+
+            final int next = c == '\t' ? (x / tabSize + 1) * tabSize : x + 1;
+            if (c > ' ' && !Character.isWhitespace(c)) {
+                if (glyphs == null) {
+                    fgPixels[fgRow + x] = fg;
+                } else {
+                    final int mask = glyphs.getMask(c);
+                    if (mask >>> 8 != 0) fgPixels[fgRow + x] = GlyphAtlas.tint(fg, mask >>> 8);
+                    if ((mask & 0xFF) != 0) fgPixels[bgRow + x] = GlyphAtlas.tint(fg, mask & 0xFF);
+                }
+            }
+            if (bg != 0) {
+                for (int bx = x, end = Math.min(next, width); bx < end; bx++) {
+                    bgPixels[bgRow + bx] = bg;
+                }
+            }
+            x = next;
+        }
+        return to;
+    }
+
+    /**
+     * Draws a block on the current outline row, unless it has no color.
+     */
+    private void drawBlock(int indent, int length, int color) {
+        if (color == 0 || y < 0 || y + 1 >= height) return;
+
+        final int row = y * pixelStride;
+        final int shade = GlyphAtlas.tint(color, BLOCK_SHADE);
+        for (int x = indent, end = Math.min(indent + length, width); x < end; x++) {
+            fgPixels[row + x] = color;
+            fgPixels[row + pixelStride + x] = shade;
+        }
+    }
+
+    /**
+     * Draws the given characters up to the first line break as a string with
+     * a tiny font, tabs expanded to four spaces.
+     */
+    private int drawText(CharSequence text, int from, int to, int fg, int bg, boolean visible) {
+        int end = from;
+        while (end < to && text.charAt(end) != '\n') end++;
+        if (!visible || x >= width) return end;
+
+        final String token = text.subSequence(from, end).toString().replace("\t", "    ");
+        final int baseline = y + 1;
+        if (bg != 0) {
+            bG.setColor(new Color(bg, true));
+            bG.drawLine(x, baseline, x + token.length(), baseline);
+        }
+        if (token.trim().length() > 0 && !token.equals(".")) {
+            if (textColor == null || textRgb != fg) {
+                textColor = new Color(fg, true);
+                textRgb = fg;
+                fG.setColor(textColor);
+            }
+            fG.drawString(token, x, baseline);
+        }
+        x += token.length();
+        return end;
+    }
+}
@@ -0,0 +1,72 @@
+package net.kano.codeoutline;
+
+/**
+ * The text an {@link OutlineRenderer} draws, and how to color it: the
+ * characters of a document, and a stream of colored spans and collapsed fold
+ * ranges covering them. Implementations adapt an editor or anything else
+ * holding text, so the renderer needs nothing from the IDE.
+ * <p>
+ * Colors are opaque ARGB values, or zero for none.
+ */
+public interface OutlineSource {
+    /**
+     * A callback for the spans reported by {@link #process}.
+     */
+    interface Visitor {
+        /**
+         * Called for a run of characters drawn in one color. The run may
+         * contain line breaks.
+         *
+         * @param startOffset the offset of the first character
+         * @param endOffset the offset after the last character
+         * @param foreground the text color
+         * @param background the background color, or zero to leave the
+         *        background empty
+         * @return whether to go on; <code>false</code> stops processing
+         */
+        boolean visitSpan(int startOffset, int endOffset, int foreground, int background);
+
+        /**
+         * Called for a collapsed fold region, whose characters are not drawn
+         * and whose line breaks do not start new rows.
+         *
+         * @param startOffset the start of the region
+         * @param endOffset the end of the region
+         * @param placeholder the text drawn in place of the region
+         * @param foreground the color of the placeholder text
+         * @return whether to go on; <code>false</code> stops processing
+         */
+        boolean visitFold(int startOffset, int endOffset, String placeholder, int foreground);
+    }
+
+    /**
+     * Returns the characters of the text.
+     *
+     * @return the text
+     */
+    CharSequence getChars();
+
+    /**
+     * Returns the number of columns between tab stops.
+     *
+     * @return the tab size
+     */
+    int getTabSize();
+
+    /**
+     * Returns the name of the font the text is drawn with.
+     *
+     * @return a font name
+     */
+    String getFontName();
+
+    /**
+     * Calls the given visitor for the spans and folds covering the given
+     * range, in order and without gaps, until it returns <code>false</code>.
+     *
+     * @param startOffset the start of the range
+     * @param endOffset the end of the range
+     * @param visitor the visitor to call
+     */
+    void process(int startOffset, int endOffset, Visitor visitor);
+}
@@ -0,0 +1,224 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A horizontal slice of the text outline covering {@link #ROWS} outline rows.
+ * Besides its images, a tile keeps track of what happened to it since it was
+ * rendered: rows that have to be rendered again, rows that moved because
+ * lines were added or removed above them, or whether it is out of date
+ * altogether. When lines are added or removed, the rows below them are moved
+ * and only the edited rows and the rows moved in from the tile above or
+ * below are rendered again, so an edit only renders a few rows of each tile.
+ * <p>
+ * A tile of a mipmap level above zero holds the same rows downsampled, each
+ * pixel row averaging 2<sup>level</sup> pixel rows of the full size tile.
+ */
+public class OutlineTile {
+    /** The number of outline rows in each tile. */
+    public static final int ROWS = 512;
+    /** The most ranges of dirty rows kept apart before they are merged. */
+    private static final int MAX_DIRTY_RANGES = 4;
+    /** The number of pixel rows between the tops of two tiles. */
+    public static final int PITCH = ROWS * OutlineRenderer.LINE_HEIGHT;
+    /** The height of a tile image; the last row of a tile spills one pixel. */
+    public static final int HEIGHT = PITCH + 1;
+
+    /** The index of this tile, counted from the top of the outline. */
+    final int index;
+    /** The mipmap level of this tile; zero for a full size tile. */
+    final int level;
+    final BufferedImage fg;
+    final BufferedImage bg;
+
+    private int foldVersion = -1;
+    private String schemeName = null;
+    private Color background = null;
+    private Color foreground = null;
+
+    /** Whether the whole tile has to be rendered again. */
+    boolean invalid = false;
+    /** The outline rows to render again, as sorted, disjoint {first, last} ranges. */
+    final List<int[]> dirty = new ArrayList<int[]>();
+    /** Pixel row shifts not applied yet, as {first pixel row, delta} pairs. */
+    final List<int[]> shifts = new ArrayList<int[]>();
+    /**
+     * The number of times rows of this tile were marked to be rendered again,
+     * so a render which read them can tell whether more were marked since.
+     */
+    int dirtyCount = 0;
+
+    OutlineTile(int index, BufferedImage fg, BufferedImage bg) {
+        this(index, 0, fg, bg);
+    }
+
+    OutlineTile(int index, int level, BufferedImage fg, BufferedImage bg) {
+        this.index = index;
+        this.level = level;
+        this.fg = fg;
+        this.bg = bg;
+    }
+
+    int getFirstRow() {
+        return index * ROWS;
+    }
+
+    int getLastRow() {
+        return index * ROWS + ROWS - 1;
+    }
+
+    /** Returns the y coordinate of the top of this tile in the outline. */
+    int getTop() {
+        return index * PITCH;
+    }
+
+    /** Returns the height of the images of a tile at the given mipmap level. */
+    static int getHeight(int level) {
+        return (HEIGHT + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * Returns whether this tile was rendered with the given settings and
+     * nothing changed since. Edits and markup changes are not part of the
+     * settings; they mark the rows they touch instead.
+     */
+    boolean isUpToDate(int width, int foldVersion, EditorColorsScheme scheme) {
+        return !invalid && dirty.isEmpty() && shifts.isEmpty() && matches(width, foldVersion, scheme);
+    }
+
+    /**
+     * Returns whether this tile was rendered with the given settings, so
+     * it can be brought up to date without rendering all of it.
+     */
+    boolean matches(int width, int foldVersion, EditorColorsScheme scheme) {
+        return fg.getWidth() == width
+                && this.foldVersion == foldVersion
+                && eq(schemeName, scheme.getName())
+                && eq(background, scheme.getDefaultBackground())
+                && eq(foreground, scheme.getDefaultForeground());
+    }
+
+    void setRenderedWith(int foldVersion, EditorColorsScheme scheme) {
+        this.foldVersion = foldVersion;
+        this.schemeName = scheme.getName();
+        this.background = scheme.getDefaultBackground();
+        this.foreground = scheme.getDefaultForeground();
+    }
+
+    /** Marks this tile as rendered with the same settings as the given one. */
+    void setRenderedLike(OutlineTile tile) {
+        this.foldVersion = tile.foldVersion;
+        this.schemeName = tile.schemeName;
+        this.background = tile.background;
+        this.foreground = tile.foreground;
+    }
+
+    /**
+     * Records an edit which replaced the outline rows between
+     * <code>startRow</code> and <code>oldEndRow</code> by the rows between
+     * <code>startRow</code> and <code>newEndRow</code>. The rows below the
+     * edit are moved; the edited rows, and the rows moving in from the tile
+     * above or below, are marked to be rendered again.
+     */
+    void edit(int startRow, int oldEndRow, int newEndRow) {
+        final int first = getFirstRow();
+        final int last = getLastRow();
+        if (invalid || startRow > last) return;
+
+        final int delta = newEndRow - oldEndRow;
+        if (delta == 0) {
+            addDirtyRows(startRow, newEndRow);
+            return;
+        }
+        if (Math.abs(delta) >= ROWS) {
+            // every row of this tile is replaced
+            invalid = true;
+            return;
+        }
+        if (oldEndRow < last) {
+            shifts.add(new int[] {
+                    Math.max(0, CodeOutlineImage.getLineTop(oldEndRow + 1) - getTop()),
+                    delta * OutlineRenderer.LINE_HEIGHT });
+            shiftDirtyRows(oldEndRow, delta);
+        }
+        addDirtyRows(startRow, newEndRow);
+        if (delta > 0) {
+            // rows moving down from the tile above
+            addDirtyRows(Math.max(newEndRow + 1, first), first + delta - 1);
+        } else {
+            // rows moving up from the tile below aren't here yet
+            addDirtyRows(Math.max(newEndRow + 1, last + delta + 1), last);
+        }
+    }
+
+    /**
+     * Moves the dirty rows below the given row by the given number of rows,
+     * dropping those moved out of this tile.
+     */
+    private void shiftDirtyRows(int aboveRow, int delta) {
+        final int first = getFirstRow();
+        final int last = getLastRow();
+        for (Iterator<int[]> it = dirty.iterator(); it.hasNext(); ) {
+            final int[] range = it.next();
+            if (range[0] > aboveRow) range[0] += delta;
+            if (range[1] > aboveRow) range[1] += delta;
+            range[0] = Math.max(range[0], first);
+            range[1] = Math.min(range[1], last);
+            if (range[1] < range[0]) it.remove();
+        }
+    }
+
+    /**
+     * Marks the given outline rows to be rendered again.
+     */
+    void addDirtyRows(int from, int to) {
+        from = Math.max(from, getFirstRow());
+        to = Math.min(to, getLastRow());
+        if (to < from) return;
+
+        dirtyCount++;
+        int i = 0;
+        while (i < dirty.size() && dirty.get(i)[1] + 1 < from) i++;
+        // merge the ranges touching the new one into it
+        while (i < dirty.size() && dirty.get(i)[0] <= to + 1) {
+            final int[] range = dirty.remove(i);
+            from = Math.min(from, range[0]);
+            to = Math.max(to, range[1]);
+        }
+        dirty.add(i, new int[] { from, to });
+
+        if (dirty.size() > MAX_DIRTY_RANGES) {
+            // the two closest ranges are rendered as one
+            int closest = 0;
+            for (int j = 1; j < dirty.size() - 1; j++) {
+                if (dirty.get(j + 1)[0] - dirty.get(j)[1] < dirty.get(closest + 1)[0] - dirty.get(closest)[1]) {
+                    closest = j;
+                }
+            }
+            dirty.get(closest)[1] = dirty.remove(closest + 1)[1];
+        }
+    }
+
+    /**
+     * Marks the rows of the given tile which were marked to be rendered again
+     * after the given count was read from it, replacing it by this tile, so
+     * rows whose markup changed during a render are not taken as current.
+     */
+    void addDirtyRowsSince(OutlineTile replaced, int count) {
+        if (replaced.dirtyCount == count) return;
+
+        for (int[] range : replaced.dirty) {
+            addDirtyRows(range[0], range[1]);
+        }
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,79 @@
+package net.kano.codeoutline;
+
+import java.util.Arrays;
+
+/**
+ * Times the phases of painting one frame of a code outline panel. Each phase
+ * runs from the end of the one before it to the call to {@link #end}, so
+ * timing a frame costs one {@link System#nanoTime} call per phase and no
+ * allocation.
+ */
+public class PaintTimer {
+    /**
+     * A phase of painting a frame, in the order they run.
+     */
+    public enum Phase {
+        LAYOUT("layout and fold counting"),
+        REPAINT_CODE("repaintCode"),
+        BACKGROUND("background"),
+        CARET_ROWS("caret rows"),
+        ERRORS("error highlights"),
+        SELECTION("selection"),
+        FOREGROUND("foreground"),
+        VIEWPORT("viewport mask");
+
+        private final String displayName;
+
+        private Phase(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long start;
+    private long last;
+
+    /**
+     * Starts timing a new frame, forgetting the last one.
+     */
+    public void start() {
+        Arrays.fill(phaseNanos, 0);
+        start = System.nanoTime();
+        last = start;
+    }
+
+    /**
+     * Ends the given phase, counting the time since the previous phase ended
+     * towards it.
+     *
+     * @param phase the phase which just ended
+     */
+    public void end(Phase phase) {
+        final long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - last;
+        last = now;
+    }
+
+    /**
+     * Returns the time from the start of the frame to the end of its last
+     * phase.
+     *
+     * @return the duration of the frame in nanoseconds
+     */
+    public long getTotalNanos() {
+        return last - start;
+    }
+
+    /**
+     * Returns the time spent in each phase, indexed by its ordinal.
+     *
+     * @return a copy of the phase durations in nanoseconds
+     */
+    public long[] getPhaseNanos() {
+        return phaseNanos.clone();
+    }
+}
@@ -0,0 +1,158 @@
+package net.kano.codeoutline;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Renders bands of the outline on several worker threads while the thread
+ * which created it prepares more of them. The preparing thread hands each
+ * band over with {@link #add}, which waits while the workers are busy with
+ * enough bands already, and must always call {@link #finish} at the end, which
+ * waits until every band handed over was rendered.
+ * <p>
+ * Once a band reports that rendering was cancelled, or throws, the bands
+ * still waiting are dropped.
+ */
+public class ParallelRender {
+    /**
+     * A part of the outline which can be rendered independently of all
+     * others.
+     */
+    public interface Band {
+        /**
+         * Renders this band. Called on a worker thread.
+         *
+         * @return whether rendering finished; <code>false</code> if it was
+         *         cancelled
+         */
+        boolean render();
+    }
+
+    /** Tells a worker there are no more bands. */
+    private static final Band END = new Band() {
+        public boolean render() {
+            return true;
+        }
+    };
+
+    private final Executor executor;
+    private final int workers;
+    private final BlockingQueue<Band> queue;
+    private final CountDownLatch finished;
+    private boolean started = false;
+    private volatile boolean failed = false;
+    private volatile Throwable error = null;
+
+    private final Runnable worker = new Runnable() {
+        public void run() {
+            try {
+                for (Band band = take(); band != END; band = take()) {
+                    if (failed) continue;
+                    try {
+                        if (!band.render()) failed = true;
+                    } catch (Throwable t) {
+                        error = t;
+                        failed = true;
+                    }
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+    };
+
+    /**
+     * Creates a render which runs the given number of workers on the given
+     * executor, starting them when the first band is added.
+     *
+     * @param executor the executor to run the workers on
+     * @param workers the number of workers
+     */
+    public ParallelRender(Executor executor, int workers) {
+        this.executor = executor;
+        this.workers = workers;
+        queue = new ArrayBlockingQueue<Band>(workers);
+        finished = new CountDownLatch(workers);
+    }
+
+    /**
+     * Hands the given band over to the workers, waiting while they are busy
+     * with enough bands already.
+     *
+     * @param band a band to render
+     * @return whether to go on adding bands; <code>false</code> if rendering
+     *         was cancelled or failed, in which case the band may be dropped
+     */
+    public boolean add(Band band) {
+        if (failed) return false;
+        if (!started) {
+            started = true;
+            for (int i = 0; i < workers; i++) {
+                executor.execute(worker);
+            }
+        }
+        put(band);
+        return !failed;
+    }
+
+    /**
+     * Waits until all bands handed over were rendered, and stops the workers.
+     *
+     * @return whether all bands were rendered; <code>false</code> if
+     *         rendering was cancelled
+     * @throws RuntimeException if rendering a band threw
+     */
+    public boolean finish() {
+        if (!started) return !failed;
+
+        for (int i = 0; i < workers; i++) {
+            put(END);
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (InterruptedException e) {
+                // the bands may still be using what the caller holds on to
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        if (error != null) throw new RuntimeException(error);
+        return !failed;
+    }
+
+    private void put(Band band) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(band);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private Band take() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.kano.codeoutline;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * Collects the parts of a component which need to be repainted and repaints
+ * their union at most once per {@link #MIN_INTERVAL} milliseconds. Each
+ * request is counted by its {@link Reason} in {@link CodeOutlineMetrics}.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class RepaintScheduler {
+    /** The shortest time between two repaints, in milliseconds. */
+    public static final int MIN_INTERVAL = 16;
+
+    /**
+     * What a part of the component needs to be repainted for.
+     */
+    public enum Reason {
+        CARET, VIEWPORT, SELECTION, MARKUP, FOLDS, OUTLINE, OPTIONS, HOVER
+    }
+
+    private final JComponent component;
+    private final Timer timer;
+
+    /** The part of the component to repaint, or null if there is none. */
+    private Rectangle dirty = null;
+    /** When the component was last repainted. */
+    private long lastRepaint = 0;
+
+    public RepaintScheduler(JComponent component) {
+        this.component = component;
+        timer = new Timer(MIN_INTERVAL, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                flush();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Schedules a repaint of the whole component.
+     *
+     * @param reason what the repaint is for
+     */
+    public void repaintAll(Reason reason) {
+        repaint(reason, new Rectangle(0, 0, component.getWidth(), component.getHeight()));
+    }
+
+    /**
+     * Schedules a repaint of the full-width strip between the given y
+     * coordinates.
+     *
+     * @param reason what the repaint is for
+     * @param top the top of the strip
+     * @param bottom the bottom of the strip, exclusive
+     */
+    public void repaintStrip(Reason reason, int top, int bottom) {
+        repaint(reason, new Rectangle(0, top, component.getWidth(), bottom - top));
+    }
+
+    /**
+     * Schedules a repaint of the given part of the component.
+     *
+     * @param reason what the repaint is for
+     * @param rect the part to repaint, which may be null
+     */
+    public void repaint(Reason reason, Rectangle rect) {
+        CodeOutlineMetrics.getInstance().repaintRequested(reason);
+        if (rect == null || rect.isEmpty()) return;
+
+        if (dirty == null) {
+            dirty = new Rectangle(rect);
+        } else {
+            dirty.add(rect);
+        }
+        if (!timer.isRunning()) {
+            final long wait = lastRepaint + MIN_INTERVAL - System.currentTimeMillis();
+            timer.setInitialDelay((int) Math.max(0, Math.min(wait, MIN_INTERVAL)));
+            timer.start();
+        }
+    }
+
+    private void flush() {
+        final Rectangle rect = dirty;
+        dirty = null;
+        if (rect == null) return;
+
+        lastRepaint = System.currentTimeMillis();
+        component.repaint(rect);
+    }
+
+    /**
+     * Stops any scheduled repaint.
+     */
+    public void dispose() {
+        timer.stop();
+        dirty = null;
+    }
+}
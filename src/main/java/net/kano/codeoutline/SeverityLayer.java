@@ -0,0 +1,253 @@
+package net.kano.codeoutline;
+
+import com.intellij.codeInsight.daemon.impl.HighlightInfo;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.ex.RangeHighlighterEx;
+import com.intellij.ui.JBColor;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The error and warning stripes drawn across the outline. The most severe
+ * problem on each line is kept in a per-line array, and the resulting stripe
+ * color of each outline row in a per-row array, so painting only fills the
+ * visible runs of rows.
+ * <p>
+ * Markup events mark the lines of the highlighter involved as dirty; only
+ * those lines are looked at again on the next paint, and only the rows of
+ * lines whose stripe changed are updated. Document edits move the lines
+ * below them and mark the edited lines dirty. Fold changes and edits adding
+ * or removing lines rebuild the row array from the line arrays. The rows are
+ * those of the fold layout passed to {@link #paint}, so a layer should only
+ * be painted with one editor's folds.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class SeverityLayer {
+    private final Document document;
+    private final HighlighterIndex highlighters;
+
+    /** The stripe colors; index 0 stands for no stripe. */
+    private final List<Color> palette = new ArrayList<Color>();
+
+    /** The number of lines in the line arrays, or -1 before they were built. */
+    private int lineCount = -1;
+    /** The fold layout the row array was built for. */
+    private FoldIndex folds = null;
+    /** The severity of the most severe problem on each line. */
+    private int[] lineSeverities = new int[0];
+    /** The palette index of the stripe color of each line. */
+    private short[] lineColors = new short[0];
+    /** The palette index of the stripe color of each outline row. */
+    private short[] rowColors = new short[0];
+    /** The range of lines whose problems may have changed. */
+    private int dirtyFrom = Integer.MAX_VALUE;
+    private int dirtyTo = -1;
+
+    public SeverityLayer(Document document, HighlighterIndex highlighters) {
+        this.document = document;
+        this.highlighters = highlighters;
+        palette.add(null);
+    }
+
+    /**
+     * Notes that the given highlighter was added, removed or changed.
+     *
+     * @param highlighter a highlighter of the document
+     */
+    public void highlighterChanged(RangeHighlighterEx highlighter) {
+        if (!highlighter.isValid()) return;
+
+        final int length = document.getTextLength();
+        dirtyFrom = Math.min(dirtyFrom, document.getLineNumber(Math.min(highlighter.getStartOffset(), length)));
+        dirtyTo = Math.max(dirtyTo, document.getLineNumber(Math.min(highlighter.getEndOffset(), length)));
+    }
+
+    /**
+     * Notes an edit which replaced the lines between <code>startLine</code>
+     * and <code>oldEndLine</code> by the lines between <code>startLine</code>
+     * and <code>newEndLine</code>. The lines below it are moved, and the
+     * edited lines are looked at again on the next paint.
+     *
+     * @param startLine the first changed line
+     * @param oldEndLine the last changed line before the change
+     * @param newEndLine the last changed line after the change
+     */
+    public void linesReplaced(int startLine, int oldEndLine, int newEndLine) {
+        if (lineCount < 0) return;
+
+        final int delta = newEndLine - oldEndLine;
+        if (delta != 0) {
+            final int newCount = lineCount + delta;
+            if (newCount > lineSeverities.length) {
+                final int capacity = Math.max(newCount, lineSeverities.length + lineSeverities.length / 2);
+                lineSeverities = Arrays.copyOf(lineSeverities, capacity);
+                lineColors = Arrays.copyOf(lineColors, capacity);
+            }
+            final int tail = lineCount - oldEndLine - 1;
+            if (tail > 0) {
+                System.arraycopy(lineSeverities, oldEndLine + 1, lineSeverities, newEndLine + 1, tail);
+                System.arraycopy(lineColors, oldEndLine + 1, lineColors, newEndLine + 1, tail);
+            }
+            if (newCount < lineCount) {
+                Arrays.fill(lineSeverities, newCount, lineCount, 0);
+                Arrays.fill(lineColors, newCount, lineCount, (short) 0);
+            }
+            lineCount = newCount;
+            folds = null;
+
+            if (dirtyFrom <= dirtyTo) {
+                if (dirtyFrom > oldEndLine) dirtyFrom += delta;
+                if (dirtyTo > oldEndLine) dirtyTo += delta;
+            }
+        }
+        dirtyFrom = Math.min(dirtyFrom, startLine);
+        dirtyTo = Math.max(dirtyTo, newEndLine);
+    }
+
+    /**
+     * Fills the stripes of the visible outline rows.
+     *
+     * @param g the graphics to paint to
+     * @param currentFolds the fold layout of the outline
+     * @param yOffset the y coordinate of the first outline row
+     * @param width the width of the outline
+     * @param height the height of the visible part of the outline
+     */
+    public void paint(Graphics g, FoldIndex currentFolds, int yOffset, int width, int height) {
+        update(currentFolds);
+
+        final int firstRow = Math.max(0, -yOffset / 2);
+        final int lastRow = Math.min(rowColors.length - 1, (-yOffset + height) / 2);
+        for (int row = firstRow; row <= lastRow; ) {
+            final short color = rowColors[row];
+            int end = row + 1;
+            while (end <= lastRow && rowColors[end] == color) end++;
+            if (color != 0) {
+                g.setColor(palette.get(color));
+                g.fillRect(0, row * 2 + yOffset, width, (end - row) * 2 + 1);
+            }
+            row = end;
+        }
+    }
+
+    private void update(FoldIndex currentFolds) {
+        if (lineCount != document.getLineCount()) {
+            // built for the first time, or an edit was missed
+            lineCount = document.getLineCount();
+            lineSeverities = new int[lineCount];
+            lineColors = new short[lineCount];
+            dirtyFrom = Integer.MAX_VALUE;
+            dirtyTo = -1;
+            collect(0, lineCount - 1, lineSeverities, lineColors);
+            folds = null;
+        }
+
+        if (folds != currentFolds) {
+            // an edit within lines builds a new fold index of the same layout
+            final boolean sameRows = folds != null && folds.hasSameFolds(currentFolds);
+            folds = currentFolds;
+            if (!sameRows) {
+                rowColors = new short[currentFolds.getRowCount()];
+                int lastRow = -1;
+                for (int line = 0; line < lineCount; line++) {
+                    if (lineColors[line] == 0) continue;
+                    final int row = currentFolds.getRow(line);
+                    if (row != lastRow) rowColors[row] = getRowColor(row);
+                    lastRow = row;
+                }
+            }
+        }
+
+        if (dirtyFrom <= dirtyTo) {
+            final int from = Math.max(0, dirtyFrom);
+            final int to = Math.min(dirtyTo, lineCount - 1);
+            dirtyFrom = Integer.MAX_VALUE;
+            dirtyTo = -1;
+            if (from <= to) updateLines(from, to, currentFolds);
+        }
+    }
+
+    /**
+     * Looks at the problems on the given lines again, and updates the rows
+     * of the lines whose stripe changed.
+     */
+    private void updateLines(int from, int to, FoldIndex currentFolds) {
+        final int count = to - from + 1;
+        final int[] severities = new int[count];
+        final short[] colors = new short[count];
+        collect(from, to, severities, colors);
+
+        int lastRow = -1;
+        for (int i = 0; i < count; i++) {
+            final int line = from + i;
+            if (lineColors[line] == colors[i] && lineSeverities[line] == severities[i]) continue;
+
+            lineColors[line] = colors[i];
+            lineSeverities[line] = severities[i];
+            final int row = currentFolds.getRow(line);
+            if (row != lastRow && folds == currentFolds && row < rowColors.length) {
+                rowColors[row] = getRowColor(row);
+            }
+            lastRow = row;
+        }
+    }
+
+    /**
+     * Fills the given arrays with the most severe problem on each of the
+     * given lines.
+     */
+    private void collect(final int from, int to, final int[] severities, final short[] colors) {
+        highlighters.process(from, to, new HighlighterIndex.Visitor() {
+            public void visit(RangeHighlighterEx h, int startLine, int endLine) {
+                if (h.isThinErrorStripeMark()) return;
+                final Object tooltip = h.getErrorStripeTooltip();
+                if (!(tooltip instanceof HighlightInfo)) return;
+                final HighlightInfo info = (HighlightInfo) tooltip;
+                if (info.getDescription() == null) return;
+
+                final int severity = info.getSeverity() == null ? 0 : info.getSeverity().myVal;
+                short color = 0;
+                for (int line = Math.max(startLine, from), last = Math.min(endLine, from + colors.length - 1); line <= last; line++) {
+                    final int i = line - from;
+                    if (colors[i] != 0 && severities[i] >= severity) continue;
+
+                    if (color == 0) color = getColorIndex(h.getErrorStripeMarkColor());
+                    severities[i] = severity;
+                    colors[i] = color;
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the stripe color of the given row: that of the most severe
+     * problem on the lines shown in it.
+     */
+    private short getRowColor(int row) {
+        final int first = folds.getLine(row);
+        final int last = Math.min(folds.getLine(row + 1), lineCount) - 1;
+        short color = 0;
+        int severity = 0;
+        for (int line = first; line <= last; line++) {
+            if (lineColors[line] != 0 && (color == 0 || lineSeverities[line] > severity)) {
+                color = lineColors[line];
+                severity = lineSeverities[line];
+            }
+        }
+        return color;
+    }
+
+    private short getColorIndex(Color color) {
+        if (color == null) color = JBColor.yellow;
+        int index = palette.indexOf(color);
+        if (index < 0) {
+            index = palette.size();
+            palette.add(color);
+        }
+        return (short) index;
+    }
+}
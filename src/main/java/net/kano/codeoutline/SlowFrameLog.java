@@ -0,0 +1,125 @@
+package net.kano.codeoutline;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Keeps the most recent frames which took code outline panels longer to
+ * paint than the budget set in the preferences, and writes each one to the
+ * IDEA log with the time spent in each paint phase.
+ * <p>
+ * All methods must be called from the event dispatch thread.
+ */
+public class SlowFrameLog {
+    private static final Logger logger = Logger.getInstance(SlowFrameLog.class.getName());
+
+    /** The number of slow frames kept. */
+    public static final int MAX_FRAMES = 50;
+
+    private static final SlowFrameLog instance = new SlowFrameLog();
+
+    private final LinkedList<SlowFrame> frames = new LinkedList<SlowFrame>();
+
+    private SlowFrameLog() { }
+
+    public static SlowFrameLog getInstance() {
+        return instance;
+    }
+
+    /**
+     * Logs the given slow frame and keeps it, dropping the oldest frame kept
+     * if there are too many.
+     *
+     * @param frame a frame which was over budget
+     */
+    public void add(SlowFrame frame) {
+        logger.info("Slow code outline frame: " + frame);
+        frames.addLast(frame);
+        if (frames.size() > MAX_FRAMES) frames.removeFirst();
+    }
+
+    /**
+     * Returns the slow frames kept, newest first.
+     *
+     * @return the recent slow frames
+     */
+    public List<SlowFrame> getFrames() {
+        final List<SlowFrame> list = new ArrayList<SlowFrame>(frames);
+        Collections.reverse(list);
+        return list;
+    }
+
+    public void clear() {
+        frames.clear();
+    }
+
+    /**
+     * A frame which was over budget, with the time spent in each paint phase
+     * and the size of what was painted.
+     */
+    public static class SlowFrame {
+        private final long time = System.currentTimeMillis();
+        private final String fileName;
+        private final long totalNanos;
+        private final long[] phaseNanos;
+        private final int textLength;
+        private final int lineCount;
+        private final int foldCount;
+        private final int highlighterCount;
+        private final int caretCount;
+
+        public SlowFrame(String fileName, long totalNanos, long[] phaseNanos, int textLength, int lineCount,
+                int foldCount, int highlighterCount, int caretCount) {
+            this.fileName = fileName;
+            this.totalNanos = totalNanos;
+            this.phaseNanos = phaseNanos;
+            this.textLength = textLength;
+            this.lineCount = lineCount;
+            this.foldCount = foldCount;
+            this.highlighterCount = highlighterCount;
+            this.caretCount = caretCount;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getPhaseNanos(PaintTimer.Phase phase) {
+            return phaseNanos[phase.ordinal()];
+        }
+
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(new SimpleDateFormat("HH:mm:ss").format(new Date(time)));
+            sb.append(' ').append(fileName).append(": ").append(formatMillis(totalNanos)).append(" ms (");
+            boolean first = true;
+            for (PaintTimer.Phase phase : PaintTimer.Phase.values()) {
+                if (!first) sb.append(", ");
+                first = false;
+                sb.append(phase.getDisplayName()).append(' ').append(formatMillis(getPhaseNanos(phase)));
+            }
+            sb.append("); ").append(textLength).append(" chars, ").append(lineCount).append(" lines, ");
+            sb.append(foldCount).append(" folds, ").append(highlighterCount).append(" highlighters, ");
+            sb.append(caretCount).append(caretCount == 1 ? " caret" : " carets");
+            return sb.toString();
+        }
+
+        private static String formatMillis(long nanos) {
+            return String.format("%.1f", nanos / 1e6);
+        }
+    }
+}
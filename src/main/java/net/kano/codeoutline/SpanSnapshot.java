@@ -0,0 +1,115 @@
+package net.kano.codeoutline;
+
+import java.util.Arrays;
+
+/**
+ * The spans and folds another {@link OutlineSource} reported for a range of
+ * text, recorded so they can be rendered on another thread. Sources which
+ * must be read inside a read action, like an editor's, are captured there and
+ * rendered from the snapshot by threads which hold no lock.
+ * <p>
+ * The characters are not copied: the text must not change while the snapshot
+ * is rendered.
+ */
+public class SpanSnapshot implements OutlineSource {
+    private final CharSequence chars;
+    private final int tabSize;
+    private final String fontName;
+
+    private int count = 0;
+    private int[] starts = new int[64];
+    private int[] ends = new int[64];
+    private int[] foregrounds = new int[64];
+    private int[] backgrounds = new int[64];
+    /** The placeholder text of each span which is a fold, or null. */
+    private String[] placeholders = new String[64];
+
+    private SpanSnapshot(OutlineSource source) {
+        chars = source.getChars();
+        tabSize = source.getTabSize();
+        fontName = source.getFontName();
+    }
+
+    /**
+     * Records the spans and folds the given source reports for the given
+     * range.
+     *
+     * @param source the source to record
+     * @param startOffset the start of the range
+     * @param endOffset the end of the range
+     * @return a snapshot of the range
+     */
+    public static SpanSnapshot capture(OutlineSource source, int startOffset, int endOffset) {
+        final SpanSnapshot snapshot = new SpanSnapshot(source);
+        source.process(startOffset, endOffset, new Visitor() {
+            public boolean visitSpan(int startOffset, int endOffset, int foreground, int background) {
+                snapshot.add(startOffset, endOffset, foreground, background, null);
+                return true;
+            }
+
+            public boolean visitFold(int startOffset, int endOffset, String placeholder, int foreground) {
+                snapshot.add(startOffset, endOffset, foreground, 0, placeholder);
+                return true;
+            }
+        });
+        return snapshot;
+    }
+
+    private void add(int start, int end, int foreground, int background, String placeholder) {
+        if (count == starts.length) {
+            final int size = count * 2;
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            foregrounds = Arrays.copyOf(foregrounds, size);
+            backgrounds = Arrays.copyOf(backgrounds, size);
+            placeholders = Arrays.copyOf(placeholders, size);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        foregrounds[count] = foreground;
+        backgrounds[count] = background;
+        placeholders[count] = placeholder;
+        count++;
+    }
+
+    public CharSequence getChars() {
+        return chars;
+    }
+
+    public int getTabSize() {
+        return tabSize;
+    }
+
+    public String getFontName() {
+        return fontName;
+    }
+
+    /**
+     * Reports the recorded spans overlapping the given range, cut to it. Folds
+     * are reported whole.
+     */
+    public void process(int startOffset, int endOffset, Visitor visitor) {
+        // the first span ending after the start of the range
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (ends[mid] <= startOffset) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        for (int i = low; i < count && starts[i] < endOffset; i++) {
+            final boolean goOn;
+            if (placeholders[i] != null) {
+                goOn = visitor.visitFold(starts[i], ends[i], placeholders[i], foregrounds[i]);
+            } else {
+                goOn = visitor.visitSpan(Math.max(starts[i], startOffset), Math.min(ends[i], endOffset),
+                        foregrounds[i], backgrounds[i]);
+            }
+            if (!goOn) return;
+        }
+    }
+}